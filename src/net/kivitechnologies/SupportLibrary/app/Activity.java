@@ -12,13 +12,14 @@ import android.widget.CompoundButton;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
+import net.kivitechnologies.SupportLibrary.utils.TaskScope;
 
 /**
  * This class used as wrapper for standart Android activity
  * This class adds some feutures and callbacks for easy listening some important events 
  * 
  * @author K. V. Bogatikov, KiVITechnologies Ltd, 2016-2017
- * @version 2.1
+ * @version 2.2
  */
 
 /**
@@ -36,6 +37,7 @@ import android.widget.Toast;
  * 1.9 bug fix
  * 2.0 constants are removed, added Enums
  * 2.1 RELEASE
+ * 2.2 added scope of background tasks, bound to lifecycle
  * 
  * @author K. V. Bogatikov, KiVITechnologies Ltd, 2016-2017
  *
@@ -81,9 +83,12 @@ public class Activity extends android.app.Activity
 	 * 
 	 * customTheme resource defining current theme of activity
 	 * used for non-restart appling theme
+	 * 
+	 * taskScope scope of background tasks of this activity
 	 */
 	private Handler stopHandler;
 	private int customTheme;
+	private final TaskScope taskScope = new TaskScope();
 	
 	/**
 	 * Called when activity is created. Used for applu theme and UI
@@ -153,6 +158,8 @@ public class Activity extends android.app.Activity
 		super.onStart();
 		STARTED = true;
 		
+		taskScope.resume();
+		
 		if(PAUSED && STOPPED && DESTROYED && CREATED)
 		{
 			if(getResources().getConfiguration().orientation == Configuration.ORIENTATION_PORTRAIT)
@@ -246,6 +253,7 @@ public class Activity extends android.app.Activity
 						if(!DESTROYED && !OCHANGED && !ARESULTED)
 						{
 							PAUSED = false;
+							taskScope.pause();
 							onStop(CallbackReason.HOME_PRESSED);
 						}
 
@@ -274,6 +282,11 @@ public class Activity extends android.app.Activity
 	protected void onDestroy()
 	{
 		super.onDestroy();
+		
+		/*
+		 * Tasks are cancelled on restart too, their results are bound to views, which are created again
+		 */
+		taskScope.cancelAll();
 		if(RESTART)
 			return;
 		
@@ -292,6 +305,17 @@ public class Activity extends android.app.Activity
 		}
 	}
 	
+	/**
+	 * Returns scope of background tasks of this activity
+	 * Tasks are paused, when user leaves activity by HOME, resumed in onStart and cancelled in onDestroy and restart
+	 * 
+	 * @return scope of tasks
+	 */
+	public TaskScope getTaskScope()
+	{
+		return taskScope;
+	}
+	
 	/**
 	 * Redraw this activity
 	 */
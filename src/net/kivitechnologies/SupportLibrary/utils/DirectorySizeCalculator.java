@@ -0,0 +1,457 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service, which calculates sizes of directory trees
+ * Tree is walked in parallel by fork/join tasks of own WorkStealingScheduler, one task per directory
+ *
+ * Listing of every directory is cached by path together with lastModified of directory, which changes when entries
+ * of directory are created, deleted or renamed. Next calculation lists only changed directories, unchanged ones
+ * cost one stat call, so repeated queries of big trees are much cheaper than first one
+ * Subtotals of subtrees are cached too and can be shown at once by getCachedSize, before calculation is finished
+ *
+ * Results are streamed to main thread through FrameDispatcher: sizes of direct subdirectories of root are delivered
+ * as soon as they are known, running total is delivered at most once per frame
+ *
+ * @warning changing of file contents does not change lastModified of directory, call invalidate after writing of file
+ * @warning symbolic links to directories are not followed
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class DirectorySizeCalculator
+{
+	/**
+	 * Directories, modified less than this count of milliseconds before listing, are not cached:
+	 * lastModified has granularity of seconds on many file systems, so later change in the same second would be missed
+	 */
+	private static final long RACY_INTERVAL = 2000;
+
+	private static DirectorySizeCalculator defaultCalculator;
+
+	private final WorkStealingScheduler scheduler;
+
+	/**
+	 * Listings of directories by absolute path
+	 */
+	private final ConcurrentHashMap<String, Listing> cache = new ConcurrentHashMap<String, Listing>();
+
+	/**
+	 * Listener of calculation, all methods are called on main thread
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static abstract class Listener
+	{
+		/**
+		 * Called when size of direct subdirectory of root is calculated
+		 *
+		 * @param directory subdirectory of root
+		 * @param bytes     size of files of subdirectory
+		 * @param files     count of files of subdirectory
+		 */
+		public void onDirectorySize(File directory, long bytes, long files) {}
+
+		/**
+		 * Called with running total of root while tree is walked
+		 *
+		 * @param bytes size of files, found so far
+		 * @param files count of files, found so far
+		 */
+		public void onProgress(long bytes, long files) {}
+
+		/**
+		 * Called when calculation is finished, it is not called for cancelled calculations
+		 *
+		 * @param bytes size of files of tree
+		 * @param files count of files of tree
+		 */
+		public void onComplete(long bytes, long files) {}
+	}
+
+	/**
+	 * Returns shared calculator, its cache is shared by all screens of application
+	 *
+	 * @return shared calculator
+	 */
+	public static synchronized DirectorySizeCalculator getDefault()
+	{
+		if(defaultCalculator == null)
+			defaultCalculator = new DirectorySizeCalculator(HardwareUtils.getCoresCount());
+
+		return defaultCalculator;
+	}
+
+	/**
+	 * Creates calculator with own cache
+	 *
+	 * @param parallelism max count of threads, which walk trees
+	 */
+	public DirectorySizeCalculator(int parallelism)
+	{
+		scheduler = new WorkStealingScheduler(Math.max(1, parallelism));
+	}
+
+	/**
+	 * Starts calculation of size of tree
+	 * Can be called on any thread
+	 *
+	 * @param root     root directory of tree
+	 * @param listener listener or null
+	 * @return calculation, which can be used for cancelling
+	 */
+	public Calculation calculate(File root, Listener listener)
+	{
+		Calculation calculation = new Calculation(root.getAbsoluteFile(), listener);
+
+		if(calculation.root.isDirectory())
+			scheduler.execute(new DirectoryTask(calculation, calculation.root, 0));
+		else
+			calculation.finish(calculation.root.length(), calculation.root.exists() ? 1 : 0);
+
+		return calculation;
+	}
+
+	/**
+	 * Returns size of tree, calculated last time
+	 * Size may be outdated, use calculate for checking it
+	 *
+	 * @param directory root directory of tree
+	 * @return size of files of tree or -1 if it was not calculated yet
+	 */
+	public long getCachedSize(File directory)
+	{
+		Listing listing = cache.get(directory.getAbsolutePath());
+		return listing != null ? listing.totalBytes : -1;
+	}
+
+	/**
+	 * Drops cached listing of file or directory and of its parent, so next calculation reads them again
+	 * Should be called after writing into file, because it does not change lastModified of its directory
+	 *
+	 * @param file changed file or directory
+	 */
+	public void invalidate(File file)
+	{
+		File absolute = file.getAbsoluteFile();
+		cache.remove(absolute.getPath());
+
+		File parent = absolute.getParentFile();
+		if(parent != null)
+			cache.remove(parent.getPath());
+	}
+
+	/**
+	 * Drops all cached listings
+	 */
+	public void clearCache()
+	{
+		cache.clear();
+	}
+
+	/**
+	 * Lists directory and caches listing
+	 *
+	 * @return listing or null if directory can not be listed
+	 */
+	private Listing list(File directory, long modified)
+	{
+		long started = System.currentTimeMillis();
+
+		File[] children = directory.listFiles();
+		if(children == null)
+		{
+			cache.remove(directory.getPath());
+			return null;
+		}
+
+		String canonical = FilesUtils.canonicalize(directory);
+		ArrayList<String> directories = new ArrayList<String>();
+		long bytes = 0, files = 0;
+
+		for(File child : children)
+		{
+			if(child.isDirectory())
+			{
+				if(!FilesUtils.isSymlink(canonical, child))
+					directories.add(child.getName());
+			}
+			else
+			{
+				bytes += child.length();
+				files++;
+			}
+		}
+
+		Listing listing = new Listing(modified, bytes, files, directories.toArray(new String[directories.size()]));
+
+		if(modified != 0 && started - modified > RACY_INTERVAL)
+			cache.put(directory.getPath(), listing);
+		else
+			cache.remove(directory.getPath());
+
+		return listing;
+	}
+
+	/**
+	 * Cached listing of one directory
+	 *
+	 * modified       lastModified of directory at listing
+	 * bytes, files   size and count of files of directory itself
+	 * directories    names of subdirectories
+	 * totalBytes     size of files of whole subtree, calculated last time, or -1
+	 */
+	private static final class Listing
+	{
+		final long modified, bytes, files;
+		final String[] directories;
+		volatile long totalBytes = -1;
+
+		Listing(long modified, long bytes, long files, String[] directories)
+		{
+			this.modified = modified;
+			this.bytes = bytes;
+			this.files = files;
+			this.directories = directories;
+		}
+	}
+
+	/**
+	 * Task of one directory, it forks tasks of subdirectories and sums their sizes
+	 */
+	private class DirectoryTask extends WorkStealingScheduler.Task
+	{
+		private final Calculation calculation;
+		private final File directory;
+		private final int depth;
+		private long bytes, files;
+
+		public DirectoryTask(Calculation calculation, File directory, int depth)
+		{
+			this.calculation = calculation;
+			this.directory = directory;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(depth > 0)
+			{
+				walk();
+				return;
+			}
+
+			try
+			{
+				walk();
+			}
+			finally
+			{
+				calculation.finish(bytes, files);
+			}
+		}
+
+		private void walk()
+		{
+			if(calculation.cancelled)
+				return;
+
+			long modified = directory.lastModified();
+			Listing listing = cache.get(directory.getPath());
+			if(listing == null || listing.modified != modified)
+				listing = list(directory, modified);
+
+			if(listing == null)
+				return;
+
+			calculation.add(listing.bytes, listing.files);
+
+			DirectoryTask[] tasks = new DirectoryTask[listing.directories.length];
+			for(int i = 0; i < tasks.length; i++)
+			{
+				tasks[i] = new DirectoryTask(calculation, new File(directory, listing.directories[i]), depth + 1);
+				tasks[i].fork();
+			}
+
+			long bytes = listing.bytes, files = listing.files;
+			for(DirectoryTask task : tasks)
+			{
+				task.join();
+				bytes += task.bytes;
+				files += task.files;
+			}
+
+			if(calculation.cancelled)
+				return;
+
+			this.bytes = bytes;
+			this.files = files;
+			listing.totalBytes = bytes;
+
+			if(depth == 1)
+				calculation.completed(directory, bytes, files);
+		}
+	}
+
+	/**
+	 * Calculated size of subdirectory, waiting for delivery
+	 */
+	private static final class Subtotal
+	{
+		final File directory;
+		final long bytes, files;
+
+		Subtotal(File directory, long bytes, long files)
+		{
+			this.directory = directory;
+			this.bytes = bytes;
+			this.files = files;
+		}
+	}
+
+	/**
+	 * Running calculation
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static final class Calculation
+	{
+		private final File root;
+		private final Listener listener;
+
+		/**
+		 * Running total and sizes of subdirectories, which were not delivered yet
+		 */
+		private final AtomicLong bytes = new AtomicLong(), files = new AtomicLong();
+		private final ConcurrentLinkedQueue<Subtotal> subdirectories = new ConcurrentLinkedQueue<Subtotal>();
+
+		private volatile boolean cancelled, finished;
+		private volatile long totalBytes, totalFiles;
+
+		/**
+		 * Flag of delivered onComplete, used on main thread only
+		 */
+		private boolean completeDelivered;
+
+		private final Runnable deliverTask = new Runnable()
+		{
+			public void run()
+			{
+				deliver();
+			}
+		};
+
+		private Calculation(File root, Listener listener)
+		{
+			this.root = root;
+			this.listener = listener;
+		}
+
+		/**
+		 * Cancels calculation, listener is not called anymore if it is called on main thread
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+			FrameDispatcher.getInstance().remove(this);
+		}
+
+		/**
+		 * @return true if calculation was cancelled
+		 */
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		/**
+		 * @return true if calculation is finished
+		 */
+		public boolean isFinished()
+		{
+			return finished;
+		}
+
+		/**
+		 * @return root directory of tree
+		 */
+		public File getRoot()
+		{
+			return root;
+		}
+
+		/**
+		 * @return size of files of tree, valid after finishing
+		 */
+		public long getBytes()
+		{
+			return totalBytes;
+		}
+
+		/**
+		 * @return count of files of tree, valid after finishing
+		 */
+		public long getFiles()
+		{
+			return totalFiles;
+		}
+
+		private void add(long bytes, long files)
+		{
+			this.bytes.addAndGet(bytes);
+			this.files.addAndGet(files);
+			requestDelivery();
+		}
+
+		private void completed(File directory, long bytes, long files)
+		{
+			if(listener != null)
+				subdirectories.offer(new Subtotal(directory, bytes, files));
+		}
+
+		private void finish(long bytes, long files)
+		{
+			totalBytes = bytes;
+			totalFiles = files;
+			finished = true;
+			requestDelivery();
+		}
+
+		/**
+		 * Updates are merged by key, so main thread gets at most one delivery per frame
+		 */
+		private void requestDelivery()
+		{
+			if(listener != null && !cancelled)
+				FrameDispatcher.getInstance().post(this, deliverTask);
+		}
+
+		private void deliver()
+		{
+			if(cancelled || completeDelivered)
+				return;
+
+			boolean finished = this.finished;
+
+			Subtotal subdirectory;
+			while((subdirectory = subdirectories.poll()) != null)
+				listener.onDirectorySize(subdirectory.directory, subdirectory.bytes, subdirectory.files);
+
+			listener.onProgress(bytes.get(), files.get());
+
+			if(finished)
+			{
+				completeDelivered = true;
+				listener.onComplete(totalBytes, totalFiles);
+			}
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+/**
+ * Parallel delete, copy and move of directory trees, used by FilesUtils.deleteTree, copyTree and moveTree
+ *
+ * Tree is walked by fork/join tasks of own WorkStealingScheduler: every directory is a task, which lists directory,
+ * forks tasks for subdirectories and processes files, so listing and syscalls of different directories overlap across cores
+ * Failures do not stop operation, they are collected into result
+ *
+ * Symbolic links to directories are never followed: they are deleted, copied or moved as links,
+ * so operation never touches files outside of tree and never loops
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+final class FileTreeOperation
+{
+	/**
+	 * Kinds of operations
+	 */
+	static enum Mode
+	{
+		DELETE, COPY, MOVE
+	}
+
+	private final Mode mode;
+	private final FilesUtils.TreeListener listener;
+	private final AtomicLong files = new AtomicLong(), bytes = new AtomicLong();
+	private final List<FilesUtils.TreeFailure> failures = Collections.synchronizedList(new ArrayList<FilesUtils.TreeFailure>());
+	private volatile boolean cancelled;
+
+	private FileTreeOperation(Mode mode, FilesUtils.TreeListener listener)
+	{
+		this.mode = mode;
+		this.listener = listener;
+	}
+
+	/**
+	 * Runs operation on caller thread, waits for its end
+	 *
+	 * @param mode        kind of operation
+	 * @param source      root of tree
+	 * @param target      target root for copying and moving, null for deleting
+	 * @param parallelism max count of threads
+	 * @param listener    listener or null
+	 * @return summary of operation
+	 */
+	static FilesUtils.TreeResult run(Mode mode, File source, File target, int parallelism, FilesUtils.TreeListener listener)
+	{
+		FileTreeOperation operation = new FileTreeOperation(mode, listener);
+
+		if(!source.exists())
+		{
+			operation.fail(source, "File does not exist");
+			return operation.result();
+		}
+
+		/*
+		 * Moving inside one volume is just renaming of root
+		 */
+		if(mode == Mode.MOVE)
+		{
+			File parent = target.getAbsoluteFile().getParentFile();
+			if(parent != null)
+				parent.mkdirs();
+
+			if(source.renameTo(target))
+				return operation.result();
+		}
+
+		if(!source.isDirectory())
+		{
+			operation.processFile(source, target);
+			return operation.result();
+		}
+
+		if(FilesUtils.isSymlink(source))
+		{
+			operation.processLink(source, target);
+			return operation.result();
+		}
+
+		WorkStealingScheduler scheduler = new WorkStealingScheduler(Math.max(1, parallelism));
+		try
+		{
+			scheduler.invoke(operation.new DirectoryTask(source, target));
+		}
+		finally
+		{
+			scheduler.shutdown();
+		}
+
+		return operation.result();
+	}
+
+	private FilesUtils.TreeResult result()
+	{
+		return new FilesUtils.TreeResult(files.get(), bytes.get(), new ArrayList<FilesUtils.TreeFailure>(failures), cancelled);
+	}
+
+	/**
+	 * Checks cancellation by listener
+	 */
+	private boolean isCancelled()
+	{
+		if(!cancelled && listener != null && listener.isCancelled())
+			cancelled = true;
+
+		return cancelled;
+	}
+
+	private void fail(File file, String reason)
+	{
+		failures.add(new FilesUtils.TreeFailure(file, reason));
+	}
+
+	private void processed(long size)
+	{
+		long count = files.incrementAndGet();
+		long total = bytes.addAndGet(size);
+
+		if(listener != null)
+			listener.onProgress(count, total);
+	}
+
+	/**
+	 * Deletes, copies or moves one file
+	 */
+	private void processFile(File file, File target)
+	{
+		long size = file.length();
+
+		try
+		{
+			switch(mode)
+			{
+				case DELETE:
+					if(!file.delete() && file.exists())
+						throw new IOException("File can not be deleted");
+					break;
+				case COPY:
+					copyFile(file, target);
+					break;
+				case MOVE:
+					FilesUtils.moveTo(file, target, null);
+					break;
+			}
+		}
+		catch(IOException e)
+		{
+			fail(file, e.getMessage());
+			return;
+		}
+
+		processed(size);
+	}
+
+	/**
+	 * Copies file, partial copy is deleted if copying fails
+	 */
+	private static void copyFile(File file, File target) throws IOException
+	{
+		boolean copied = false;
+		try
+		{
+			long size = FilesUtils.copy(file, target, null);
+			if(target.length() != size)
+				throw new IOException("Copy is broken: " + target.length() + " of " + size + " bytes");
+
+			target.setLastModified(file.lastModified());
+			copied = true;
+		}
+		finally
+		{
+			if(!copied)
+				target.delete();
+		}
+	}
+
+	/**
+	 * Deletes, copies or moves symbolic link to directory, linked directory is not touched
+	 */
+	private void processLink(File link, File target)
+	{
+		try
+		{
+			switch(mode)
+			{
+				case DELETE:
+					if(!link.delete())
+						throw new IOException("Link can not be deleted");
+					break;
+				case COPY:
+					copyLink(link, target);
+					break;
+				case MOVE:
+					if(link.renameTo(target))
+						break;
+
+					copyLink(link, target);
+					if(!link.delete())
+					{
+						target.delete();
+						throw new IOException("Link can not be deleted");
+					}
+					break;
+			}
+		}
+		catch(IOException e)
+		{
+			fail(link, e.getMessage());
+			return;
+		}
+
+		processed(0);
+	}
+
+	private static void copyLink(File link, File target) throws IOException
+	{
+		if(SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+			throw new IOException("Symbolic link can not be copied before API 21");
+
+		Links.copy(link, target);
+	}
+
+	/**
+	 * Operations with links, they are available since API 21 only
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static class Links
+	{
+		public static void copy(File link, File target) throws IOException
+		{
+			try
+			{
+				Os.symlink(Os.readlink(link.getPath()), target.getPath());
+			}
+			catch(ErrnoException e)
+			{
+				throw new IOException("Link can not be copied: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Task of one directory
+	 */
+	private class DirectoryTask extends WorkStealingScheduler.Task
+	{
+		private final File directory, target;
+
+		public DirectoryTask(File directory, File target)
+		{
+			this.directory = directory;
+			this.target = target;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(isCancelled())
+				return;
+
+			if(mode != Mode.DELETE && !target.isDirectory() && !target.mkdirs())
+			{
+				fail(target, "Directory can not be created");
+				return;
+			}
+
+			File[] children = directory.listFiles();
+			if(children == null)
+			{
+				fail(directory, "Directory can not be listed");
+				return;
+			}
+
+			String canonical = FilesUtils.canonicalize(directory);
+			ArrayList<DirectoryTask> forked = new ArrayList<DirectoryTask>();
+			for(File child : children)
+			{
+				File childTarget = target != null ? new File(target, child.getName()) : null;
+
+				if(child.isDirectory() && FilesUtils.isSymlink(canonical, child))
+				{
+					if(!isCancelled())
+						processLink(child, childTarget);
+				}
+				else if(child.isDirectory())
+				{
+					DirectoryTask task = new DirectoryTask(child, childTarget);
+					task.fork();
+					forked.add(task);
+				}
+				else if(!isCancelled())
+				{
+					processFile(child, childTarget);
+				}
+			}
+
+			for(DirectoryTask task : forked)
+				task.join();
+
+			/*
+			 * Directory is deleted after all its children, it is not empty if something failed or operation was cancelled
+			 */
+			if(mode != Mode.COPY && !cancelled)
+			{
+				if(!directory.delete() && directory.exists())
+					fail(directory, "Directory can not be deleted");
+			}
+		}
+	}
+}
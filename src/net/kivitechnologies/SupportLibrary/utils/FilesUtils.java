@@ -1,11 +1,12 @@
 package net.kivitechnologies.SupportLibrary.utils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
 
 import android.os.Environment;
 
@@ -18,6 +19,148 @@ import android.os.Environment;
  */
 public class FilesUtils
 {
+	/**
+	 * Size of chunk, copied by one call of transferTo, progress is reported after every chunk
+	 */
+	private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+	
+	/**
+	 * Listener of progress of long operations with files
+	 */
+	public static interface ProgressListener
+	{
+		/**
+		 * Called after every copied chunk
+		 * 
+		 * @param done  count of processed bytes
+		 * @param total count of all bytes
+		 */
+		public void onProgress(long done, long total);
+	}
+	
+	/**
+	 * Listener of operations with trees: deleteTree, copyTree and moveTree
+	 * Methods are called on worker threads, so they must be thread-safe and fast
+	 */
+	public static abstract class TreeListener
+	{
+		/**
+		 * Called after every processed file
+		 * 
+		 * @param files count of processed files
+		 * @param bytes size of processed files
+		 */
+		public void onProgress(long files, long bytes)
+		{
+			
+		}
+		
+		/**
+		 * Polled before every file and directory
+		 * 
+		 * @return true if operation must be stopped
+		 */
+		public boolean isCancelled()
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * File, which was not processed by operation with tree
+	 */
+	public static class TreeFailure
+	{
+		private final File file;
+		private final String reason;
+		
+		TreeFailure(File file, String reason)
+		{
+			this.file = file;
+			this.reason = reason;
+		}
+		
+		/**
+		 * @return file, which was not processed
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+		
+		/**
+		 * @return description of error
+		 */
+		public String getReason()
+		{
+			return reason;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return file + ": " + reason;
+		}
+	}
+	
+	/**
+	 * Summary of operation with tree
+	 */
+	public static class TreeResult
+	{
+		private final long files, bytes;
+		private final List<TreeFailure> failures;
+		private final boolean cancelled;
+		
+		TreeResult(long files, long bytes, List<TreeFailure> failures, boolean cancelled)
+		{
+			this.files = files;
+			this.bytes = bytes;
+			this.failures = failures;
+			this.cancelled = cancelled;
+		}
+		
+		/**
+		 * @return count of processed files
+		 */
+		public long getFiles()
+		{
+			return files;
+		}
+		
+		/**
+		 * @return size of processed files
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+		
+		/**
+		 * @return files, which were not processed, and reasons
+		 */
+		public List<TreeFailure> getFailures()
+		{
+			return failures;
+		}
+		
+		/**
+		 * @return true if operation was cancelled by listener
+		 */
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+		
+		/**
+		 * @return true if all files were processed
+		 */
+		public boolean isSuccessful()
+		{
+			return !cancelled && failures.isEmpty();
+		}
+	}
+	
 	/**
 	 * Returns SD card directory
 	 * 
@@ -69,37 +212,215 @@ public class FilesUtils
 	 * Moves file into new file
 	 * 
 	 * @warning target is not a directory for new file!
+	 * @warning directory, moved between volumes, is moved file by file, if it fails midway,
+	 *          already moved files stay in target and others stay in initial directory
 	 * 
 	 * @param initial file for moving
 	 * @param target  file for saving moved file
+	 * @throws IOException if file can not be moved, initial file is not changed in this case, unless it is directory
 	 * 
 	 * @return target's parent file
 	 */
 	public static File moveTo(File initial, File target) throws IOException
 	{
-		target.createNewFile();
-		
-		BufferedInputStream bis = new BufferedInputStream(new FileInputStream(target));
-		BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(target));
+		return moveTo(initial, target, null);
+	}
+	
+	/**
+	 * Moves file or directory into new file
+	 * If both files are on the same volume, file is just renamed
+	 * Otherwise it is copied by FileChannel.transferTo without copying of data through Java heap,
+	 * size of copy is verified and initial file is deleted. If anything fails, partial copy is deleted
+	 * 
+	 * @warning target is not a directory for new file!
+	 * @warning directory, moved between volumes, is moved file by file, if it fails midway,
+	 *          already moved files stay in target and others stay in initial directory
+	 * 
+	 * @param initial  file for moving
+	 * @param target   file for saving moved file
+	 * @param listener listener of progress of copying or null, it is not called if file is renamed
+	 * @throws IOException if file can not be moved, initial file is not changed in this case, unless it is directory
+	 * 
+	 * @return target's parent file
+	 */
+	public static File moveTo(File initial, File target, ProgressListener listener) throws IOException
+	{
+		if(!initial.exists())
+			throw new IOException("File " + initial + " does not exist");
 		
-		int byte_;
-		while((byte_ = bis.read()) != -1)
-			bos.write(byte_);
+		File parent = target.getAbsoluteFile().getParentFile();
+		if(parent != null && !parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Directory " + parent + " can not be created");
 		
-		bos.flush();
-		bos.close();
-		bis.close();
+		if(initial.renameTo(target))
+			return target.getParentFile();
 		
-		initial.delete();
+		if(initial.isDirectory())
+			moveDirectory(initial, target, listener);
+		else
+			moveFile(initial, target, listener);
 		
 		return target.getParentFile();
 	}
 	
 	/**
-	 * Returns Storage directory
-	 * In Android "Storage" directory contains SD Card file and Local storage directory
+	 * Moves directory between volumes, file by file
+	 */
+	private static void moveDirectory(File initial, File target, ProgressListener listener) throws IOException
+	{
+		if(!target.isDirectory() && !target.mkdirs())
+			throw new IOException("Directory " + target + " can not be created");
+		
+		File[] files = initial.listFiles();
+		if(files == null)
+			throw new IOException("Directory " + initial + " can not be listed");
+		
+		for(File file : files)
+			moveTo(file, new File(target, file.getName()), listener);
+		
+		if(!initial.delete())
+			throw new IOException("Directory " + initial + " can not be deleted");
+	}
+	
+	/**
+	 * Copies file into temporary file near target, verifies it, renames it into target and deletes initial file
+	 */
+	private static void moveFile(File initial, File target, ProgressListener listener) throws IOException
+	{
+		File temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".part");
+		boolean moved = false;
+		
+		try
+		{
+			long size = copy(initial, temp, listener);
+			
+			if(temp.length() != size)
+				throw new IOException("Copy of " + initial + " is broken: " + temp.length() + " of " + size + " bytes");
+			
+			temp.setLastModified(initial.lastModified());
+			
+			if(!temp.renameTo(target))
+				throw new IOException("File " + temp + " can not be renamed into " + target);
+			
+			if(!initial.delete())
+			{
+				target.delete();
+				throw new IOException("File " + initial + " can not be deleted");
+			}
+			
+			moved = true;
+		}
+		finally
+		{
+			if(!moved)
+				temp.delete();
+		}
+	}
+	
+	/**
+	 * Copies file by FileChannel.transferTo, data is flushed to disk
 	 * 
-	 * @return file, assocciated by system with sd card's parent
+	 * @return size of copied file
+	 */
+	static long copy(File source, File target, ProgressListener listener) throws IOException
+	{
+		FileInputStream input = null;
+		FileOutputStream output = null;
+		
+		try
+		{
+			input = new FileInputStream(source);
+			output = new FileOutputStream(target);
+			
+			FileChannel in = input.getChannel(), out = output.getChannel();
+			long size = in.size(), position = 0;
+			
+			while(position < size)
+			{
+				long transferred = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+				if(transferred <= 0)
+					throw new IOException("File " + source + " was truncated while copying");
+				
+				position += transferred;
+				if(listener != null)
+					listener.onProgress(position, size);
+			}
+			
+			out.force(false);
+			return size;
+		}
+		finally
+		{
+			close(input);
+			close(output);
+		}
+	}
+	
+	private static void close(Closeable closeable)
+	{
+		if(closeable == null)
+			return;
+		
+		try
+		{
+			closeable.close();
+		}
+		catch(IOException e)
+		{
+			
+		}
+	}
+	
+	/**
+	 * Returns canonical path of file
+	 * 
+	 * @return canonical path or null if it can not be resolved
+	 */
+	static String canonicalize(File file)
+	{
+		try
+		{
+			return file.getCanonicalPath();
+		}
+		catch(IOException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Checks, whether child of directory is symbolic link: canonical path of link differs from path inside canonical parent
+	 * 
+	 * @param canonicalParent canonical path of directory or null if it can not be resolved
+	 * @param child           file of directory
+	 * @return true if child is link or if it can not be checked
+	 */
+	static boolean isSymlink(String canonicalParent, File child)
+	{
+		if(canonicalParent == null)
+			return true;
+		
+		String canonical = canonicalize(child);
+		return canonical == null || !canonical.equals(new File(canonicalParent, child.getName()).getPath());
+	}
+	
+	/**
+	 * Checks, whether file is symbolic link
+	 * 
+	 * @param file file for checking
+	 * @return true if file is link or if it can not be checked
+	 */
+	static boolean isSymlink(File file)
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		return parent != null && isSymlink(canonicalize(parent), file);
+	}
+	
+	/**
+	 * Deletes file or directory with all its content on caller thread
+	 * Use deleteTree for big trees, it deletes them in parallel
+	 * 
+	 * @param file file or directory for deleting
 	 */
 	public static void delete(File file)
 	{
@@ -115,6 +436,62 @@ public class FilesUtils
 		
 		file.delete();
 	}
+	
+	/**
+	 * Deletes directory with all its content
+	 * Directories are listed and deleted in parallel, failures do not stop deleting
+	 * Symbolic links to directories are deleted as links, content of linked directories is not touched
+	 * 
+	 * @warning blocks caller until the end, do not call it on main thread for big trees
+	 * 
+	 * @param root        file or directory for deleting
+	 * @param parallelism max count of threads
+	 * @param listener    listener of progress and cancellation or null
+	 * @return summary of deleting
+	 */
+	public static TreeResult deleteTree(File root, int parallelism, TreeListener listener)
+	{
+		return FileTreeOperation.run(FileTreeOperation.Mode.DELETE, root, null, parallelism, listener);
+	}
+	
+	/**
+	 * Copies directory with all its content into target directory
+	 * Directories are listed and copied in parallel, failures do not stop copying
+	 * Symbolic links to directories are copied as links on API 21 and higher, on older devices they are reported as failures
+	 * 
+	 * @warning blocks caller until the end, do not call it on main thread for big trees
+	 * @warning files, copied before failure or cancellation, stay in target, TreeResult.isSuccessful returns false then;
+	 *          failed file itself is not left partially copied
+	 * 
+	 * @param source      file or directory for copying
+	 * @param target      copy of source, it is created if it does not exist
+	 * @param parallelism max count of threads
+	 * @param listener    listener of progress and cancellation or null
+	 * @return summary of copying
+	 */
+	public static TreeResult copyTree(File source, File target, int parallelism, TreeListener listener)
+	{
+		return FileTreeOperation.run(FileTreeOperation.Mode.COPY, source, target, parallelism, listener);
+	}
+	
+	/**
+	 * Moves directory with all its content into target directory
+	 * If it is possible, directory is just renamed, otherwise files are moved in parallel by moveTo
+	 * Failed files stay in source directory
+	 * Symbolic links to directories are moved as links, see copyTree
+	 * 
+	 * @warning blocks caller until the end, do not call it on main thread for big trees
+	 * 
+	 * @param source      file or directory for moving
+	 * @param target      new file of source
+	 * @param parallelism max count of threads
+	 * @param listener    listener of progress and cancellation or null
+	 * @return summary of moving
+	 */
+	public static TreeResult moveTree(File source, File target, int parallelism, TreeListener listener)
+	{
+		return FileTreeOperation.run(FileTreeOperation.Mode.MOVE, source, target, parallelism, listener);
+	}
 
 	/**
 	 * Returns formatted file size
@@ -122,33 +499,12 @@ public class FilesUtils
 	 * But usually we need to show file size in kilobytes or megabytes (or gigabytes)
 	 * as <SIZE> KB or <SIZE> MB
 	 * 
+	 * For long lists use SizeFormatter directly, it writes sizes into buffer of caller without allocations
+	 * 
 	 * @return String with formatted file size
 	 */
 	public static String getFileSize(File file)
 	{
-		float bytes = Long.valueOf(file.length()).floatValue();
-		String unit = "";
-		String[] units = { "B", "KB", "MB", "GB" };
-		
-		int i = 0;
-		for(i = 0; i < units.length; i++)
-		{
-			if(bytes < Math.pow(1024, i + 1))
-			{
-				unit = units[i];
-				bytes /= Math.pow(1024, i);
-				
-				if(bytes < 512)
-					break;
-			}	
-		}
-		
-		String sizePattern;
-		if(Math.round(bytes) == bytes)
-			sizePattern = "%.0f";
-		else
-			sizePattern = "%.2f";
-		
-		return String.format(sizePattern, bytes) + unit;
+		return SizeFormatter.getDefault().format(file.length(), new StringBuilder(SizeFormatter.MAX_LENGTH)).toString();
 	}
 }
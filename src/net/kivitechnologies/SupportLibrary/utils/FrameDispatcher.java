@@ -0,0 +1,228 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Dispatcher of UI updates, posted from background threads
+ * Updates are collected and executed on main thread by one batch at the start of next frame,
+ * so several updates cost one message and never land in the middle of frame
+ *
+ * Updates, posted with the same key, are merged: only last of them is executed, e.g. only latest value of progress is shown
+ *
+ * Frames are taken from Choreographer on API 16 and higher, older devices use Handler with frame interval
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class FrameDispatcher
+{
+	/**
+	 * Interval of frames, used without Choreographer
+	 */
+	private static final long FRAME_INTERVAL = 16;
+
+	private static FrameDispatcher instance;
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * pending updates, which will be executed at next frame, in order of posting
+	 * executing updates of current batch, lists are swapped at every frame for avoiding allocations
+	 * keys indexes of keyed updates in pending list
+	 * All fields are guarded by this object
+	 */
+	private ArrayList<Runnable> pending = new ArrayList<Runnable>(), executing = new ArrayList<Runnable>();
+	private final HashMap<Object, Integer> keys = new HashMap<Object, Integer>();
+	private boolean scheduled;
+
+	/**
+	 * Instance of FrameCallback, it is Object for loading this class on any API, used on main thread only
+	 */
+	private Object frameCallback;
+
+	/**
+	 * Executes batch, posted with Handler
+	 */
+	private final Runnable dispatchTask = new Runnable()
+	{
+		public void run()
+		{
+			dispatch();
+		}
+	};
+
+	/**
+	 * Requests frame callback, must be called on main thread because Choreographer is bound to looper
+	 */
+	private final Runnable scheduleTask = new Runnable()
+	{
+		public void run()
+		{
+			if(SDK_INT >= 16)
+				FrameCallback.post(FrameDispatcher.this);
+			else
+				handler.postDelayed(dispatchTask, FRAME_INTERVAL - SystemClock.uptimeMillis() % FRAME_INTERVAL);
+		}
+	};
+
+	/**
+	 * Returns shared dispatcher of main thread
+	 *
+	 * @return shared dispatcher
+	 */
+	public static synchronized FrameDispatcher getInstance()
+	{
+		if(instance == null)
+			instance = new FrameDispatcher();
+
+		return instance;
+	}
+
+	/**
+	 * Posts update, which will be executed on main thread at next frame
+	 * Can be called on any thread
+	 *
+	 * @param update update of UI
+	 */
+	public void post(Runnable update)
+	{
+		synchronized(this)
+		{
+			pending.add(update);
+			if(!schedule())
+				return;
+		}
+
+		requestFrame();
+	}
+
+	/**
+	 * Posts update, which will be executed on main thread at next frame
+	 * If update with the same key is pending already, it is replaced by this one, but keeps its position in batch
+	 * Can be called on any thread
+	 *
+	 * @param key    key of update, e.g. view, which is updated
+	 * @param update update of UI
+	 */
+	public void post(Object key, Runnable update)
+	{
+		synchronized(this)
+		{
+			Integer index = keys.get(key);
+			if(index != null)
+			{
+				pending.set(index, update);
+				return;
+			}
+
+			keys.put(key, pending.size());
+			pending.add(update);
+			if(!schedule())
+				return;
+		}
+
+		requestFrame();
+	}
+
+	/**
+	 * Removes pending update with key
+	 *
+	 * @param key key of update
+	 */
+	public synchronized void remove(Object key)
+	{
+		Integer index = keys.remove(key);
+		if(index != null)
+			pending.set(index, null);
+	}
+
+	/**
+	 * Marks frame as scheduled
+	 *
+	 * @return true if frame must be requested
+	 */
+	private boolean schedule()
+	{
+		if(scheduled)
+			return false;
+
+		scheduled = true;
+		return true;
+	}
+
+	private void requestFrame()
+	{
+		if(Looper.myLooper() == Looper.getMainLooper())
+			scheduleTask.run();
+		else
+			handler.post(scheduleTask);
+	}
+
+	/**
+	 * Executes all pending updates, updates posted by them are executed at next frame
+	 */
+	private void dispatch()
+	{
+		ArrayList<Runnable> batch;
+		synchronized(this)
+		{
+			batch = pending;
+			pending = executing;
+			executing = batch;
+
+			keys.clear();
+			scheduled = false;
+		}
+
+		try
+		{
+			for(int i = 0; i < batch.size(); i++)
+			{
+				Runnable update = batch.get(i);
+				if(update != null)
+					update.run();
+			}
+		}
+		finally
+		{
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Frame callback, it is separated for loading Choreographer only on API 16 and higher
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class FrameCallback implements Choreographer.FrameCallback
+	{
+		private final FrameDispatcher dispatcher;
+
+		private FrameCallback(FrameDispatcher dispatcher)
+		{
+			this.dispatcher = dispatcher;
+		}
+
+		public static void post(FrameDispatcher dispatcher)
+		{
+			if(dispatcher.frameCallback == null)
+				dispatcher.frameCallback = new FrameCallback(dispatcher);
+
+			Choreographer.getInstance().postFrameCallback((FrameCallback)dispatcher.frameCallback);
+		}
+
+		public void doFrame(long frameTimeNanos)
+		{
+			dispatcher.dispatch();
+		}
+	}
+}
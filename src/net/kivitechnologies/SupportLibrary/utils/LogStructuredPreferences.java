@@ -0,0 +1,802 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * SharedPreferences, stored in append-only log in app-private storage
+ * Can be used as storage backend of SavingUtils, so all typed getters and putters work on top of it
+ *
+ * Every commit appends one record with changed values only, so save cost is proportional to size of change, not to size of store
+ * All values are kept in memory, file is read once on creation
+ *
+ * Record: <body length><body><CRC32 of body>, body contains clear flag, count of changes and changes
+ * On loading records are replayed in order; broken tail (e.g. after crash during write) is cut off
+ * When log grows twice as large as after last compaction, it is rewritten in background with live values only
+ *
+ * As SharedPreferences of Context, there is only one instance for every file, so all users see same values
+ * and records of one file are never appended by two instances
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class LogStructuredPreferences implements SharedPreferences
+{
+	private static final String TAG = "LogStructuredPreferences";
+
+	/**
+	 * MAGIC first int of log file
+	 * VERSION version of record format
+	 * HEADER_SIZE size of magic and version
+	 *
+	 * MIN_COMPACTION_SIZE log, smaller than this size in bytes, is never compacted
+	 */
+	private static final int MAGIC = 0x4B4C4F47, VERSION = 1, HEADER_SIZE = 8;
+	private static final long MIN_COMPACTION_SIZE = 64 * 1024;
+
+	/**
+	 * Types of values in records
+	 */
+	private static final byte TYPE_REMOVE = 0, TYPE_INT = 1, TYPE_LONG = 2, TYPE_FLOAT = 3, TYPE_BOOLEAN = 4, TYPE_STRING = 5, TYPE_STRING_SET = 6;
+
+	/**
+	 * writer executor, which appends records of all stores
+	 * It has only one thread and records are submitted in order of applying into memory, so log is replayed in same order
+	 *
+	 * compactor executor, which compacts logs in background
+	 */
+	private static final ExecutorService writer = Executors.newSingleThreadExecutor(new DaemonFactory(TAG + "-writer"));
+	private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new DaemonFactory(TAG + "-compactor"));
+
+	/**
+	 * Marker of removed value in editor's changes
+	 */
+	private static final Object REMOVED = new Object();
+
+	/**
+	 * Opened stores by canonical path of log, guarded by itself
+	 */
+	private static final HashMap<String, LogStructuredPreferences> opened = new HashMap<String, LogStructuredPreferences>();
+
+	private final File file, compactionFile;
+	private final Map<String, Object> values = new HashMap<String, Object>();
+	private final WeakHashMap<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * writeLock guards output, logLength and compactedLength
+	 *
+	 * logLength current length of log file in bytes
+	 * compactedLength length of log after last load or compaction
+	 */
+	private final Object writeLock = new Object();
+	private FileOutputStream output;
+	private long logLength, compactedLength;
+	private boolean compacting;
+
+	/**
+	 * Opens store in app-private directory
+	 *
+	 * @param ctx  Context for getting app-private directory
+	 * @param name name of store
+	 * @return opened store
+	 * @throws IOException if log can not be read or created
+	 */
+	public static LogStructuredPreferences open(Context ctx, String name) throws IOException
+	{
+		return open(new File(ctx.getDir("log_prefs", Context.MODE_PRIVATE), name + ".log"));
+	}
+
+	/**
+	 * Opens store in given file
+	 * Store, which is already opened, is returned as is, otherwise log is read and recovered if it was broken
+	 *
+	 * @param file file of log
+	 * @return opened store
+	 * @throws IOException if log can not be read or created
+	 */
+	public static LogStructuredPreferences open(File file) throws IOException
+	{
+		String path = file.getCanonicalPath();
+
+		synchronized(opened)
+		{
+			LogStructuredPreferences prefs = opened.get(path);
+			if(prefs == null)
+			{
+				prefs = new LogStructuredPreferences(new File(path));
+				opened.put(path, prefs);
+			}
+
+			return prefs;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * Reads log and recovers it if it was broken
+	 *
+	 * @param file file of log
+	 * @throws IOException if log can not be read or created
+	 */
+	private LogStructuredPreferences(File file) throws IOException
+	{
+		this.file = file;
+		this.compactionFile = new File(file.getPath() + ".compact");
+
+		if(compactionFile.exists())
+			compactionFile.delete();
+
+		load();
+		output = new FileOutputStream(file, true);
+	}
+
+	/**
+	 * Replays all records of log into memory and cuts off broken tail
+	 */
+	private void load() throws IOException
+	{
+		if(!file.exists() || file.length() < HEADER_SIZE)
+		{
+			writeHeader(file);
+			logLength = compactedLength = HEADER_SIZE;
+			return;
+		}
+
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		long validLength = HEADER_SIZE;
+
+		try
+		{
+			if(input.readInt() != MAGIC || input.readInt() != VERSION)
+				throw new IOException("File " + file + " is not a preferences log");
+
+			CRC32 crc = new CRC32();
+			long fileLength = file.length();
+
+			while(true)
+			{
+				int length;
+				try
+				{
+					length = input.readInt();
+				}
+				catch(EOFException e)
+				{
+					break;
+				}
+
+				if(length <= 0 || validLength + 8 + length > fileLength)
+					break;
+
+				byte[] body = new byte[length];
+				input.readFully(body);
+
+				crc.reset();
+				crc.update(body, 0, length);
+				if((int)crc.getValue() != input.readInt())
+					break;
+
+				replay(body);
+				validLength += 8 + length;
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+
+		if(validLength < file.length())
+		{
+			Log.w(TAG, "Log " + file + " is broken at " + validLength + ", tail is cut off");
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				raf.setLength(validLength);
+				raf.getFD().sync();
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+
+		logLength = compactedLength = validLength;
+	}
+
+	/**
+	 * Applies one record to values
+	 *
+	 * @param body body of record
+	 */
+	private void replay(byte[] body) throws IOException
+	{
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(body));
+
+		if(input.readBoolean())
+			values.clear();
+
+		int count = input.readInt();
+		for(int i = 0; i < count; i++)
+		{
+			String key = readString(input);
+			Object value = readValue(input);
+
+			if(value == REMOVED)
+				values.remove(key);
+			else
+				values.put(key, value);
+		}
+	}
+
+	private static void writeHeader(File file) throws IOException
+	{
+		FileOutputStream stream = new FileOutputStream(file);
+		try
+		{
+			DataOutputStream output = new DataOutputStream(stream);
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.flush();
+			stream.getFD().sync();
+		}
+		finally
+		{
+			stream.close();
+		}
+	}
+
+	public Map<String, ?> getAll()
+	{
+		synchronized(values)
+		{
+			return new HashMap<String, Object>(values);
+		}
+	}
+
+	public String getString(String key, String defValue)
+	{
+		synchronized(values)
+		{
+			String value = (String)values.get(key);
+			return value != null ? value : defValue;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public Set<String> getStringSet(String key, Set<String> defValues)
+	{
+		synchronized(values)
+		{
+			Set<String> value = (Set<String>)values.get(key);
+			return value != null ? value : defValues;
+		}
+	}
+
+	public int getInt(String key, int defValue)
+	{
+		synchronized(values)
+		{
+			Integer value = (Integer)values.get(key);
+			return value != null ? value.intValue() : defValue;
+		}
+	}
+
+	public long getLong(String key, long defValue)
+	{
+		synchronized(values)
+		{
+			Long value = (Long)values.get(key);
+			return value != null ? value.longValue() : defValue;
+		}
+	}
+
+	public float getFloat(String key, float defValue)
+	{
+		synchronized(values)
+		{
+			Float value = (Float)values.get(key);
+			return value != null ? value.floatValue() : defValue;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defValue)
+	{
+		synchronized(values)
+		{
+			Boolean value = (Boolean)values.get(key);
+			return value != null ? value.booleanValue() : defValue;
+		}
+	}
+
+	public boolean contains(String key)
+	{
+		synchronized(values)
+		{
+			return values.containsKey(key);
+		}
+	}
+
+	public Editor edit()
+	{
+		return new LogEditor();
+	}
+
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener)
+	{
+		synchronized(listeners)
+		{
+			listeners.put(listener, REMOVED);
+		}
+	}
+
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener)
+	{
+		synchronized(listeners)
+		{
+			listeners.remove(listener);
+		}
+	}
+
+	/**
+	 * Appends record into log and syncs it with disk
+	 * Starts compaction if log became too large
+	 *
+	 * @param record full record: length, body and CRC32
+	 * @return true if record was written
+	 */
+	private boolean append(byte[] record)
+	{
+		boolean compact = false;
+
+		synchronized(writeLock)
+		{
+			try
+			{
+				output.write(record);
+				output.getFD().sync();
+				logLength += record.length;
+			}
+			catch(IOException e)
+			{
+				Log.e(TAG, "Can not append record into " + file, e);
+				return false;
+			}
+
+			if(!compacting && logLength > MIN_COMPACTION_SIZE && logLength > 2 * compactedLength)
+				compact = compacting = true;
+		}
+
+		if(compact)
+		{
+			compactor.execute(new Runnable()
+			{
+				public void run()
+				{
+					compact();
+				}
+			});
+		}
+
+		return true;
+	}
+
+	/**
+	 * Rewrites log with live values only
+	 * Records, appended while compaction was running, are copied into new log before it replaces old one
+	 */
+	private void compact()
+	{
+		Map<String, Object> snapshot;
+		long snapshotLength;
+
+		synchronized(values)
+		{
+			synchronized(writeLock)
+			{
+				snapshotLength = logLength;
+			}
+			snapshot = new HashMap<String, Object>(values);
+		}
+
+		try
+		{
+			writeHeader(compactionFile);
+			FileOutputStream compacted = new FileOutputStream(compactionFile, true);
+
+			try
+			{
+				compacted.write(encode(true, snapshot));
+
+				synchronized(writeLock)
+				{
+					copyTail(snapshotLength, logLength, compacted);
+					compacted.getFD().sync();
+
+					if(!compactionFile.renameTo(file))
+						throw new IOException("Can not replace " + file + " by compacted log");
+
+					output.close();
+					output = new FileOutputStream(file, true);
+					logLength = compactedLength = file.length();
+				}
+			}
+			finally
+			{
+				compacted.close();
+			}
+		}
+		catch(IOException e)
+		{
+			Log.e(TAG, "Compaction of " + file + " failed", e);
+			compactionFile.delete();
+		}
+		finally
+		{
+			synchronized(writeLock)
+			{
+				compacting = false;
+			}
+		}
+	}
+
+	/**
+	 * Copies records, written into current log between from and to, into output
+	 */
+	private void copyTail(long from, long to, FileOutputStream target) throws IOException
+	{
+		if(from >= to)
+			return;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			raf.getChannel().transferTo(from, to - from, target.getChannel());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Encodes changes into full record: length, body and CRC32
+	 *
+	 * @param clear   true if all values were removed before applying changes
+	 * @param changes changed values, REMOVED for removed ones
+	 * @return record for appending into log
+	 */
+	private static byte[] encode(boolean clear, Map<String, Object> changes) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(body);
+
+		output.writeBoolean(clear);
+		output.writeInt(changes.size());
+
+		for(Map.Entry<String, Object> entry : changes.entrySet())
+		{
+			writeString(output, entry.getKey());
+			writeValue(output, entry.getValue());
+		}
+
+		CRC32 crc = new CRC32();
+		byte[] bytes = body.toByteArray();
+		crc.update(bytes, 0, bytes.length);
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 8);
+		output = new DataOutputStream(record);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+		output.writeInt((int)crc.getValue());
+
+		return record.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void writeValue(DataOutputStream output, Object value) throws IOException
+	{
+		if(value == REMOVED)
+		{
+			output.writeByte(TYPE_REMOVE);
+		}
+		else if(value instanceof Integer)
+		{
+			output.writeByte(TYPE_INT);
+			output.writeInt((Integer)value);
+		}
+		else if(value instanceof Long)
+		{
+			output.writeByte(TYPE_LONG);
+			output.writeLong((Long)value);
+		}
+		else if(value instanceof Float)
+		{
+			output.writeByte(TYPE_FLOAT);
+			output.writeFloat((Float)value);
+		}
+		else if(value instanceof Boolean)
+		{
+			output.writeByte(TYPE_BOOLEAN);
+			output.writeBoolean((Boolean)value);
+		}
+		else if(value instanceof String)
+		{
+			output.writeByte(TYPE_STRING);
+			writeString(output, (String)value);
+		}
+		else
+		{
+			Set<String> set = (Set<String>)value;
+			output.writeByte(TYPE_STRING_SET);
+			output.writeInt(set.size());
+			for(String item : set)
+				writeString(output, item);
+		}
+	}
+
+	private static Object readValue(DataInputStream input) throws IOException
+	{
+		switch(input.readByte())
+		{
+			case TYPE_REMOVE:
+				return REMOVED;
+			case TYPE_INT:
+				return input.readInt();
+			case TYPE_LONG:
+				return input.readLong();
+			case TYPE_FLOAT:
+				return input.readFloat();
+			case TYPE_BOOLEAN:
+				return input.readBoolean();
+			case TYPE_STRING:
+				return readString(input);
+			case TYPE_STRING_SET:
+				int size = input.readInt();
+				Set<String> set = new HashSet<String>(size * 2);
+				for(int i = 0; i < size; i++)
+					set.add(readString(input));
+				return set;
+			default:
+				throw new IOException("Unknown type of value");
+		}
+	}
+
+	/**
+	 * Writes string as UTF-8 with int length, because writeUTF can not write strings longer than 64 KB
+	 */
+	private static void writeString(DataOutputStream output, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes("UTF-8");
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(DataInputStream input) throws IOException
+	{
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Editor, which collects changes and writes them by one record
+	 * Editor can be used again after commit or apply
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	private class LogEditor implements Editor
+	{
+		private final Map<String, Object> changes = new HashMap<String, Object>();
+		private boolean clear;
+
+		public synchronized Editor putString(String key, String value)
+		{
+			changes.put(key, value == null ? REMOVED : value);
+			return this;
+		}
+
+		public synchronized Editor putStringSet(String key, Set<String> values)
+		{
+			changes.put(key, values == null ? REMOVED : new HashSet<String>(values));
+			return this;
+		}
+
+		public synchronized Editor putInt(String key, int value)
+		{
+			changes.put(key, value);
+			return this;
+		}
+
+		public synchronized Editor putLong(String key, long value)
+		{
+			changes.put(key, value);
+			return this;
+		}
+
+		public synchronized Editor putFloat(String key, float value)
+		{
+			changes.put(key, value);
+			return this;
+		}
+
+		public synchronized Editor putBoolean(String key, boolean value)
+		{
+			changes.put(key, value);
+			return this;
+		}
+
+		public synchronized Editor remove(String key)
+		{
+			changes.put(key, REMOVED);
+			return this;
+		}
+
+		public synchronized Editor clear()
+		{
+			clear = true;
+			return this;
+		}
+
+		public boolean commit()
+		{
+			Future<Boolean> result = commitToMemory();
+			if(result == null)
+				return true;
+
+			try
+			{
+				return result.get();
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			catch(ExecutionException e)
+			{
+				Log.e(TAG, "Can not commit changes into " + file, e.getCause());
+				return false;
+			}
+		}
+
+		public void apply()
+		{
+			commitToMemory();
+		}
+
+		/**
+		 * Applies changes to values, notifies listeners and submits record for appending into log
+		 *
+		 * @return result of appending or null if there is nothing to write
+		 */
+		private Future<Boolean> commitToMemory()
+		{
+			boolean clear;
+			Map<String, Object> changes;
+
+			synchronized(this)
+			{
+				if(!this.clear && this.changes.isEmpty())
+					return null;
+
+				clear = this.clear;
+				changes = new HashMap<String, Object>(this.changes);
+				this.clear = false;
+				this.changes.clear();
+			}
+
+			Future<Boolean> result;
+			synchronized(values)
+			{
+				if(clear)
+					values.clear();
+
+				for(Map.Entry<String, Object> entry : changes.entrySet())
+				{
+					if(entry.getValue() == REMOVED)
+						values.remove(entry.getKey());
+					else
+						values.put(entry.getKey(), entry.getValue());
+				}
+
+				final byte[] record;
+				try
+				{
+					record = encode(clear, changes);
+				}
+				catch(IOException e)
+				{
+					throw new IllegalStateException(e);
+				}
+
+				result = writer.submit(new Callable<Boolean>()
+				{
+					public Boolean call()
+					{
+						return append(record);
+					}
+				});
+			}
+
+			notifyListeners(changes.keySet());
+			return result;
+		}
+	}
+
+	/**
+	 * Creates daemon threads with given name
+	 */
+	private static class DaemonFactory implements ThreadFactory
+	{
+		private final String name;
+
+		public DaemonFactory(String name)
+		{
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Notifies registered listeners on main thread, same as SharedPreferences do
+	 *
+	 * @param keys changed keys
+	 */
+	private void notifyListeners(final Set<String> keys)
+	{
+		final Set<OnSharedPreferenceChangeListener> targets;
+		synchronized(listeners)
+		{
+			if(listeners.isEmpty())
+				return;
+
+			targets = new HashSet<OnSharedPreferenceChangeListener>(listeners.keySet());
+		}
+
+		mainHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				for(String key : keys)
+					for(OnSharedPreferenceChangeListener listener : targets)
+						listener.onSharedPreferenceChanged(LogStructuredPreferences.this, key);
+			}
+		});
+	}
+}
@@ -0,0 +1,488 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Matrix, stored in memory-mapped file
+ * Single cells, ranges of rows and sub-rectangles are read without loading whole matrix
+ * Rows and cells are updated in place
+ *
+ * File has fixed header: magic, version, element type, rows and columns count
+ * Elements are stored row by row as little-endian primitives right after header
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class MappedMatrix
+{
+	/**
+	 * MAGIC first int of matrix file
+	 * VERSION version of file format
+	 * HEADER_SIZE size of header in bytes
+	 */
+	private static final int MAGIC = 0x4B4D4154, VERSION = 1, HEADER_SIZE = 32;
+
+	/**
+	 * Enumeration contains types of matrix elements
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static enum ElementType
+	{
+		INT(4), FLOAT(4), DOUBLE(8);
+
+		private final int size;
+
+		private ElementType(int size)
+		{
+			this.size = size;
+		}
+
+		/**
+		 * @return size of one element in bytes
+		 */
+		public int getSize()
+		{
+			return size;
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer mapped;
+	private final ElementType type;
+	private final int rows, columns;
+
+	/**
+	 * Views of data region, only one of them is not null, depending on type
+	 */
+	private final IntBuffer ints;
+	private final FloatBuffer floats;
+	private final DoubleBuffer doubles;
+
+	/**
+	 * Opens matrix file or creates it, if file does not exist
+	 *
+	 * @param path    file of matrix
+	 * @param type    type of elements
+	 * @param rows    rows count
+	 * @param columns columns count
+	 * @throws IOException if file can not be mapped or it contains matrix with other type or dimensions
+	 * @return mapped matrix
+	 */
+	public static MappedMatrix open(File path, ElementType type, int rows, int columns) throws IOException
+	{
+		if(rows <= 0 || columns <= 0)
+			throw new IllegalArgumentException("Matrix dimensions must be positive: " + rows + "x" + columns);
+
+		boolean exists = path.exists() && path.length() >= HEADER_SIZE;
+		MappedMatrix matrix = new MappedMatrix(path, exists ? null : type, rows, columns);
+
+		if(matrix.type != type || matrix.rows != rows || matrix.columns != columns)
+		{
+			matrix.close();
+			throw new IOException("File " + path + " contains " + matrix.type + " matrix " + matrix.rows + "x" + matrix.columns
+					+ ", but " + type + " matrix " + rows + "x" + columns + " requested");
+		}
+
+		return matrix;
+	}
+
+	/**
+	 * Opens existing matrix file, type and dimensions are read from header
+	 *
+	 * @param path file of matrix
+	 * @throws IOException if file can not be mapped or it is not a matrix file
+	 * @return mapped matrix
+	 */
+	public static MappedMatrix open(File path) throws IOException
+	{
+		return new MappedMatrix(path, null, 0, 0);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param path    file of matrix
+	 * @param type    type of elements for new file, or null if header must be read from existing file
+	 * @param rows    rows count for new file
+	 * @param columns columns count for new file
+	 */
+	private MappedMatrix(File path, ElementType type, int rows, int columns) throws IOException
+	{
+		file = new RandomAccessFile(path, "rw");
+
+		try
+		{
+			FileChannel channel = file.getChannel();
+
+			if(type == null)
+			{
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(header, 0);
+				header.flip();
+
+				if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION)
+					throw new IOException("File " + path + " is not a matrix file");
+
+				int ordinal = header.getInt();
+				if(ordinal < 0 || ordinal >= ElementType.values().length)
+					throw new IOException("File " + path + " contains unknown element type " + ordinal);
+
+				type = ElementType.values()[ordinal];
+				rows = header.getInt();
+				columns = header.getInt();
+			}
+
+			this.type = type;
+			this.rows = rows;
+			this.columns = columns;
+
+			long size = HEADER_SIZE + (long)rows * columns * type.getSize();
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("Matrix " + rows + "x" + columns + " is too large for mapping");
+
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+			mapped.putInt(0, MAGIC);
+			mapped.putInt(4, VERSION);
+			mapped.putInt(8, type.ordinal());
+			mapped.putInt(12, rows);
+			mapped.putInt(16, columns);
+
+			mapped.position(HEADER_SIZE);
+			ByteBuffer data = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+			mapped.position(0);
+
+			ints = type == ElementType.INT ? data.asIntBuffer() : null;
+			floats = type == ElementType.FLOAT ? data.asFloatBuffer() : null;
+			doubles = type == ElementType.DOUBLE ? data.asDoubleBuffer() : null;
+		}
+		catch(IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return type of elements
+	 */
+	public ElementType getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return rows count
+	 */
+	public int getRowsCount()
+	{
+		return rows;
+	}
+
+	/**
+	 * @return columns count
+	 */
+	public int getColumnsCount()
+	{
+		return columns;
+	}
+
+	/**
+	 * Returns one cell of int matrix
+	 *
+	 * @param row    row of cell
+	 * @param column column of cell
+	 * @return value of cell
+	 */
+	public int getInt(int row, int column)
+	{
+		return ints(row, column).get(index(row, column));
+	}
+
+	/**
+	 * Returns one cell of float matrix
+	 *
+	 * @param row    row of cell
+	 * @param column column of cell
+	 * @return value of cell
+	 */
+	public float getFloat(int row, int column)
+	{
+		return floats(row, column).get(index(row, column));
+	}
+
+	/**
+	 * Returns one cell of double matrix
+	 *
+	 * @param row    row of cell
+	 * @param column column of cell
+	 * @return value of cell
+	 */
+	public double getDouble(int row, int column)
+	{
+		return doubles(row, column).get(index(row, column));
+	}
+
+	/**
+	 * Sets one cell of int matrix
+	 *
+	 * @param row    row of cell
+	 * @param column column of cell
+	 * @param value  new value of cell
+	 */
+	public void setInt(int row, int column, int value)
+	{
+		ints(row, column).put(index(row, column), value);
+	}
+
+	/**
+	 * Sets one cell of float matrix
+	 *
+	 * @param row    row of cell
+	 * @param column column of cell
+	 * @param value  new value of cell
+	 */
+	public void setFloat(int row, int column, float value)
+	{
+		floats(row, column).put(index(row, column), value);
+	}
+
+	/**
+	 * Sets one cell of double matrix
+	 *
+	 * @param row    row of cell
+	 * @param column column of cell
+	 * @param value  new value of cell
+	 */
+	public void setDouble(int row, int column, double value)
+	{
+		doubles(row, column).put(index(row, column), value);
+	}
+
+	/**
+	 * Returns sub-rectangle of int matrix
+	 *
+	 * @param row     first row of rectangle
+	 * @param column  first column of rectangle
+	 * @param height  rows count of rectangle
+	 * @param width   columns count of rectangle
+	 * @return matrix height x width
+	 */
+	public int[][] readInt(int row, int column, int height, int width)
+	{
+		checkRectangle(row, column, height, width);
+		IntBuffer view = ints(0, 0).duplicate();
+
+		int[][] result = new int[height][width];
+		for(int i = 0; i < height; i++)
+		{
+			view.position(index(row + i, column));
+			view.get(result[i]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns sub-rectangle of float matrix
+	 *
+	 * @param row     first row of rectangle
+	 * @param column  first column of rectangle
+	 * @param height  rows count of rectangle
+	 * @param width   columns count of rectangle
+	 * @return matrix height x width
+	 */
+	public float[][] readFloat(int row, int column, int height, int width)
+	{
+		checkRectangle(row, column, height, width);
+		FloatBuffer view = floats(0, 0).duplicate();
+
+		float[][] result = new float[height][width];
+		for(int i = 0; i < height; i++)
+		{
+			view.position(index(row + i, column));
+			view.get(result[i]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns sub-rectangle of double matrix
+	 *
+	 * @param row     first row of rectangle
+	 * @param column  first column of rectangle
+	 * @param height  rows count of rectangle
+	 * @param width   columns count of rectangle
+	 * @return matrix height x width
+	 */
+	public double[][] readDouble(int row, int column, int height, int width)
+	{
+		checkRectangle(row, column, height, width);
+		DoubleBuffer view = doubles(0, 0).duplicate();
+
+		double[][] result = new double[height][width];
+		for(int i = 0; i < height; i++)
+		{
+			view.position(index(row + i, column));
+			view.get(result[i]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns range of rows of int matrix
+	 *
+	 * @param row   first row
+	 * @param count rows count
+	 * @return matrix count x columns
+	 */
+	public int[][] readIntRows(int row, int count)
+	{
+		return readInt(row, 0, count, columns);
+	}
+
+	/**
+	 * Returns range of rows of float matrix
+	 *
+	 * @param row   first row
+	 * @param count rows count
+	 * @return matrix count x columns
+	 */
+	public float[][] readFloatRows(int row, int count)
+	{
+		return readFloat(row, 0, count, columns);
+	}
+
+	/**
+	 * Returns range of rows of double matrix
+	 *
+	 * @param row   first row
+	 * @param count rows count
+	 * @return matrix count x columns
+	 */
+	public double[][] readDoubleRows(int row, int count)
+	{
+		return readDouble(row, 0, count, columns);
+	}
+
+	/**
+	 * Rewrites one row of int matrix in place
+	 *
+	 * @param row    index of row
+	 * @param values new values of row, length must be equal to columns count
+	 */
+	public void writeRow(int row, int[] values)
+	{
+		checkRow(row, values.length);
+		IntBuffer view = ints(row, 0).duplicate();
+		view.position(index(row, 0));
+		view.put(values);
+	}
+
+	/**
+	 * Rewrites one row of float matrix in place
+	 *
+	 * @param row    index of row
+	 * @param values new values of row, length must be equal to columns count
+	 */
+	public void writeRow(int row, float[] values)
+	{
+		checkRow(row, values.length);
+		FloatBuffer view = floats(row, 0).duplicate();
+		view.position(index(row, 0));
+		view.put(values);
+	}
+
+	/**
+	 * Rewrites one row of double matrix in place
+	 *
+	 * @param row    index of row
+	 * @param values new values of row, length must be equal to columns count
+	 */
+	public void writeRow(int row, double[] values)
+	{
+		checkRow(row, values.length);
+		DoubleBuffer view = doubles(row, 0).duplicate();
+		view.position(index(row, 0));
+		view.put(values);
+	}
+
+	/**
+	 * Forces all changes to be written on disk
+	 */
+	public void force()
+	{
+		mapped.force();
+	}
+
+	/**
+	 * Writes changes on disk and closes file
+	 * Mapping itself is released by garbage collector
+	 *
+	 * @throws IOException if file can not be closed
+	 */
+	public void close() throws IOException
+	{
+		mapped.force();
+		file.close();
+	}
+
+	private int index(int row, int column)
+	{
+		return row * columns + column;
+	}
+
+	private IntBuffer ints(int row, int column)
+	{
+		checkCell(row, column, ElementType.INT);
+		return ints;
+	}
+
+	private FloatBuffer floats(int row, int column)
+	{
+		checkCell(row, column, ElementType.FLOAT);
+		return floats;
+	}
+
+	private DoubleBuffer doubles(int row, int column)
+	{
+		checkCell(row, column, ElementType.DOUBLE);
+		return doubles;
+	}
+
+	private void checkCell(int row, int column, ElementType requested)
+	{
+		if(type != requested)
+			throw new IllegalStateException("Matrix contains " + type + " elements, but " + requested + " requested");
+		if(row < 0 || row >= rows || column < 0 || column >= columns)
+			throw new IndexOutOfBoundsException("Cell [" + row + ", " + column + "] is out of matrix " + rows + "x" + columns);
+	}
+
+	private void checkRectangle(int row, int column, int height, int width)
+	{
+		if(height < 0 || width < 0 || row < 0 || column < 0 || row + height > rows || column + width > columns)
+			throw new IndexOutOfBoundsException("Rectangle " + height + "x" + width + " at [" + row + ", " + column + "] is out of matrix " + rows + "x" + columns);
+	}
+
+	private void checkRow(int row, int length)
+	{
+		if(length != columns)
+			throw new IllegalArgumentException("Row must contain " + columns + " elements, but contains " + length);
+		if(row < 0 || row >= rows)
+			throw new IndexOutOfBoundsException("Row " + row + " is out of matrix " + rows + "x" + columns);
+	}
+}
@@ -0,0 +1,327 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free channel between many producer threads and one consumer thread
+ * Unlike Handler and Message it does not allocate or synchronize on every message:
+ * slots of ring buffer are created once by SlotFactory and are filled again and again
+ *
+ * Producer:
+ *   long sequence = channel.next();
+ *   channel.get(sequence).set(...);
+ *   channel.publish(sequence);
+ *
+ * Consumer drains all published messages by one call of drain or take
+ *
+ * @warning only one thread may consume messages
+ * @warning slot must not be used after publish by producer and after onMessage by consumer, it will be filled again
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class MessageChannel<E>
+{
+	/**
+	 * Count of spins before yielding of thread in SPINNING strategy
+	 */
+	private static final int SPINS = 100;
+
+	/**
+	 * Enumeration contains strategies of waiting for messages or for free slots
+	 *
+	 * SPINNING - thread spins and yields, it gives smallest latency, but burns CPU, use it for short waits only
+	 * BLOCKING - thread sleeps on condition, it is woken by other side
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static enum WaitStrategy
+	{
+		SPINNING, BLOCKING
+	}
+
+	/**
+	 * Factory of slots, called once for every slot at creation of channel
+	 */
+	public static interface SlotFactory<E>
+	{
+		public E newSlot();
+	}
+
+	/**
+	 * Receiver of messages
+	 */
+	public static interface Receiver<E>
+	{
+		/**
+		 * Called for every message of batch
+		 *
+		 * @param message    slot with message
+		 * @param endOfBatch true if it is last message of batch
+		 */
+		public void onMessage(E message, boolean endOfBatch);
+	}
+
+	private final Object[] slots;
+	private final int mask;
+	private final WaitStrategy strategy;
+
+	/**
+	 * cursor last claimed sequence
+	 * consumed last consumed sequence
+	 * published sequence, published in slot, by index of slot
+	 */
+	private final AtomicLong cursor = new AtomicLong(-1), consumed = new AtomicLong(-1);
+	private final AtomicLongArray published;
+
+	/**
+	 * Lock and conditions of BLOCKING strategy, they are used only if other side waits
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+	private final AtomicInteger waitingConsumers = new AtomicInteger(), waitingProducers = new AtomicInteger();
+
+	/**
+	 * Creates channel
+	 *
+	 * @param capacity count of slots, it is rounded up to power of two
+	 * @param factory  factory of slots
+	 * @param strategy strategy of waiting
+	 */
+	public MessageChannel(int capacity, SlotFactory<E> factory, WaitStrategy strategy)
+	{
+		if(capacity <= 0 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Wrong capacity of channel: " + capacity);
+
+		int size = 1;
+		while(size < capacity)
+			size <<= 1;
+
+		this.mask = size - 1;
+		this.strategy = strategy;
+
+		slots = new Object[size];
+		published = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++)
+		{
+			slots[i] = factory.newSlot();
+			published.set(i, -1);
+		}
+	}
+
+	/**
+	 * @return count of slots
+	 */
+	public int getCapacity()
+	{
+		return slots.length;
+	}
+
+	/**
+	 * Claims next slot, waits if channel is full
+	 *
+	 * @return sequence of claimed slot
+	 */
+	public long next()
+	{
+		int spins = 0;
+
+		while(true)
+		{
+			long sequence = tryNext();
+			if(sequence >= 0)
+				return sequence;
+
+			if(strategy == WaitStrategy.BLOCKING)
+				awaitSpace();
+			else
+				spins = spin(spins);
+		}
+	}
+
+	/**
+	 * Claims next slot, if channel is not full
+	 *
+	 * @return sequence of claimed slot or -1 if channel is full
+	 */
+	public long tryNext()
+	{
+		while(true)
+		{
+			long current = cursor.get();
+			long next = current + 1;
+
+			if(next - slots.length > consumed.get())
+				return -1;
+
+			if(cursor.compareAndSet(current, next))
+				return next;
+		}
+	}
+
+	/**
+	 * Returns slot for filling by producer
+	 *
+	 * @param sequence sequence, returned by next or tryNext
+	 * @return slot
+	 */
+	@SuppressWarnings("unchecked")
+	public E get(long sequence)
+	{
+		return (E)slots[(int)(sequence & mask)];
+	}
+
+	/**
+	 * Publishes filled slot, consumer receives it after all slots with smaller sequences
+	 *
+	 * @param sequence sequence, returned by next or tryNext
+	 */
+	public void publish(long sequence)
+	{
+		published.set((int)(sequence & mask), sequence);
+
+		if(waitingConsumers.get() > 0)
+			signal(notEmpty);
+	}
+
+	/**
+	 * Passes all published messages to receiver, does not wait
+	 * If receiver throws exception, message, which caused it, is consumed, following messages stay in channel for next call
+	 *
+	 * @param receiver receiver of messages
+	 * @param maxBatch max count of messages
+	 * @return count of received messages
+	 */
+	public int drain(Receiver<? super E> receiver, int maxBatch)
+	{
+		long first = consumed.get() + 1;
+
+		int count = 0;
+		while(count < maxBatch && published.get((int)((first + count) & mask)) == first + count)
+			count++;
+
+		if(count == 0)
+			return 0;
+
+		int delivered = 0;
+		try
+		{
+			while(delivered < count)
+			{
+				delivered++;
+				receiver.onMessage(get(first + delivered - 1), delivered == count);
+			}
+		}
+		finally
+		{
+			consumed.set(first + delivered - 1);
+
+			if(waitingProducers.get() > 0)
+				signal(notFull);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Passes published messages to receiver, waits for at least one message
+	 *
+	 * @param receiver receiver of messages
+	 * @param maxBatch max count of messages
+	 * @throws InterruptedException if thread was interrupted while waiting
+	 * @return count of received messages
+	 */
+	public int take(Receiver<? super E> receiver, int maxBatch) throws InterruptedException
+	{
+		int spins = 0;
+
+		while(true)
+		{
+			int count = drain(receiver, maxBatch);
+			if(count > 0)
+				return count;
+
+			if(Thread.interrupted())
+				throw new InterruptedException();
+
+			if(strategy == WaitStrategy.BLOCKING)
+				awaitMessage();
+			else
+				spins = spin(spins);
+		}
+	}
+
+	/**
+	 * @return true if there are no published messages
+	 */
+	public boolean isEmpty()
+	{
+		long next = consumed.get() + 1;
+		return published.get((int)(next & mask)) != next;
+	}
+
+	private static int spin(int spins)
+	{
+		if(spins < SPINS)
+			return spins + 1;
+
+		Thread.yield();
+		return spins;
+	}
+
+	/**
+	 * Waits for message, waiting counter is incremented before check, so publish sees it or this thread sees message
+	 */
+	private void awaitMessage() throws InterruptedException
+	{
+		lock.lock();
+		waitingConsumers.incrementAndGet();
+		try
+		{
+			if(isEmpty())
+				notEmpty.await();
+		}
+		finally
+		{
+			waitingConsumers.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for free slot, producer is not interruptible as next can not fail
+	 */
+	private void awaitSpace()
+	{
+		lock.lock();
+		waitingProducers.incrementAndGet();
+		try
+		{
+			if(cursor.get() + 1 - slots.length > consumed.get())
+				notFull.awaitUninterruptibly();
+		}
+		finally
+		{
+			waitingProducers.decrementAndGet();
+			lock.unlock();
+		}
+	}
+
+	private void signal(Condition condition)
+	{
+		lock.lock();
+		try
+		{
+			condition.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,640 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Base64;
+
+/**
+ * Binary codec for arrays and matrices, saved by SavingUtils
+ * Values are packed as little-endian primitives and wrapped into Base64, so they still fit into SharedPreferences
+ *
+ * Packed value looks like <PREFIX><TYPE>:<BASE64>, where BASE64 contains 4-byte elements count and packed elements
+ * Booleans are packed as bits, 8 per byte
+ *
+ * Values, saved in old text format (1|2|3), are decoded too
+ *
+ * Any string value can be compressed by Deflater, compressed value looks like <COMPRESSED_PREFIX><BASE64>,
+ * where BASE64 contains 4-byte length of original UTF-8 bytes and deflated bytes
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public final class PackedCodec
+{
+	/**
+	 * Prefix of every packed value. Old text format never starts with it
+	 */
+	public static final String PREFIX = "~P1";
+
+	/**
+	 * Type markers, written after PREFIX
+	 */
+	public static final char INT = 'I', FLOAT = 'F', DOUBLE = 'D', BOOLEAN = 'Z';
+
+	/**
+	 * Prefix of every compressed value
+	 */
+	public static final String COMPRESSED_PREFIX = "~Z1:";
+
+	/**
+	 * Length of header: PREFIX, type marker and ':'
+	 */
+	private static final int HEADER_LENGTH = PREFIX.length() + 2;
+
+	/**
+	 * Separator of values in old text format
+	 */
+	private static final char LEGACY_SEPARATOR = '|';
+
+	/**
+	 * Max ratio of deflate: one compressed byte expands into at most 1032 bytes
+	 * Length in header of compressed value, which exceeds it, is broken
+	 */
+	private static final int MAX_INFLATE_RATIO = 1032;
+
+	private PackedCodec()
+	{
+
+	}
+
+	/**
+	 * Returns true if value was encoded by this codec, false if it is in old text format
+	 *
+	 * @param value value from preferences
+	 * @return true if value is packed
+	 */
+	public static boolean isPacked(String value)
+	{
+		return value != null && value.length() >= HEADER_LENGTH && value.startsWith(PREFIX) && value.charAt(HEADER_LENGTH - 1) == ':';
+	}
+
+	/**
+	 * Encodes int array
+	 *
+	 * @param array array of integers
+	 * @return packed string
+	 */
+	public static String encode(int[] array)
+	{
+		ByteBuffer buffer = allocate(array.length, 4);
+		buffer.asIntBuffer().put(array);
+		return wrap(INT, buffer);
+	}
+
+	/**
+	 * Encodes float array
+	 *
+	 * @param array array of floats
+	 * @return packed string
+	 */
+	public static String encode(float[] array)
+	{
+		ByteBuffer buffer = allocate(array.length, 4);
+		buffer.asFloatBuffer().put(array);
+		return wrap(FLOAT, buffer);
+	}
+
+	/**
+	 * Encodes double array
+	 *
+	 * @param array array of doubles
+	 * @return packed string
+	 */
+	public static String encode(double[] array)
+	{
+		ByteBuffer buffer = allocate(array.length, 8);
+		buffer.asDoubleBuffer().put(array);
+		return wrap(DOUBLE, buffer);
+	}
+
+	/**
+	 * Encodes boolean array as bits
+	 *
+	 * @param array array of booleans
+	 * @return packed string
+	 */
+	public static String encode(boolean[] array)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(4 + (array.length + 7) / 8).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(array.length);
+
+		byte[] bytes = buffer.array();
+		for(int i = 0; i < array.length; i++)
+			if(array[i])
+				bytes[4 + (i >> 3)] |= 1 << (i & 7);
+
+		return wrap(BOOLEAN, buffer);
+	}
+
+	/**
+	 * Encodes int matrix row by row
+	 *
+	 * @param matrix matrix MxN of integers
+	 * @return packed string
+	 */
+	public static String encode(int[][] matrix)
+	{
+		ByteBuffer buffer = allocate(count(matrix), 4);
+		IntBuffer ints = buffer.asIntBuffer();
+		for(int[] row : matrix)
+			ints.put(row);
+
+		return wrap(INT, buffer);
+	}
+
+	/**
+	 * Encodes float matrix row by row
+	 *
+	 * @param matrix matrix MxN of floats
+	 * @return packed string
+	 */
+	public static String encode(float[][] matrix)
+	{
+		ByteBuffer buffer = allocate(count(matrix), 4);
+		FloatBuffer floats = buffer.asFloatBuffer();
+		for(float[] row : matrix)
+			floats.put(row);
+
+		return wrap(FLOAT, buffer);
+	}
+
+	/**
+	 * Encodes double matrix row by row
+	 *
+	 * @param matrix matrix MxN of doubles
+	 * @return packed string
+	 */
+	public static String encode(double[][] matrix)
+	{
+		ByteBuffer buffer = allocate(count(matrix), 8);
+		DoubleBuffer doubles = buffer.asDoubleBuffer();
+		for(double[] row : matrix)
+			doubles.put(row);
+
+		return wrap(DOUBLE, buffer);
+	}
+
+	/**
+	 * Encodes boolean matrix row by row
+	 *
+	 * @param matrix matrix MxN of booleans
+	 * @return packed string
+	 */
+	public static String encode(boolean[][] matrix)
+	{
+		boolean[] array = new boolean[count(matrix)];
+
+		int offset = 0;
+		for(boolean[] row : matrix)
+		{
+			System.arraycopy(row, 0, array, offset, row.length);
+			offset += row.length;
+		}
+
+		return encode(array);
+	}
+
+	/**
+	 * Decodes int array from packed or old text format
+	 *
+	 * @param value value from preferences
+	 * @return array of integers
+	 */
+	public static int[] decodeIntArray(String value)
+	{
+		if(!isPacked(value))
+		{
+			int[] array = new int[countLegacy(value)];
+			int start = 0;
+			for(int i = 0; i < array.length; i++)
+			{
+				int end = nextSeparator(value, start);
+				array[i] = Integer.parseInt(value.substring(start, end));
+				start = end + 1;
+			}
+
+			return array;
+		}
+
+		ByteBuffer buffer = unwrap(INT, value);
+		int[] array = new int[buffer.getInt()];
+		buffer.asIntBuffer().get(array);
+		return array;
+	}
+
+	/**
+	 * Decodes float array from packed or old text format
+	 *
+	 * @param value value from preferences
+	 * @return array of floats
+	 */
+	public static float[] decodeFloatArray(String value)
+	{
+		if(!isPacked(value))
+		{
+			float[] array = new float[countLegacy(value)];
+			int start = 0;
+			for(int i = 0; i < array.length; i++)
+			{
+				int end = nextSeparator(value, start);
+				array[i] = Float.parseFloat(value.substring(start, end));
+				start = end + 1;
+			}
+
+			return array;
+		}
+
+		ByteBuffer buffer = unwrap(FLOAT, value);
+		float[] array = new float[buffer.getInt()];
+		buffer.asFloatBuffer().get(array);
+		return array;
+	}
+
+	/**
+	 * Decodes double array from packed or old text format
+	 *
+	 * @param value value from preferences
+	 * @return array of doubles
+	 */
+	public static double[] decodeDoubleArray(String value)
+	{
+		if(!isPacked(value))
+		{
+			double[] array = new double[countLegacy(value)];
+			int start = 0;
+			for(int i = 0; i < array.length; i++)
+			{
+				int end = nextSeparator(value, start);
+				array[i] = Double.parseDouble(value.substring(start, end));
+				start = end + 1;
+			}
+
+			return array;
+		}
+
+		ByteBuffer buffer = unwrap(DOUBLE, value);
+		double[] array = new double[buffer.getInt()];
+		buffer.asDoubleBuffer().get(array);
+		return array;
+	}
+
+	/**
+	 * Decodes boolean array from packed or old text format
+	 *
+	 * @param value value from preferences
+	 * @return array of booleans
+	 */
+	public static boolean[] decodeBooleanArray(String value)
+	{
+		if(!isPacked(value))
+		{
+			boolean[] array = new boolean[countLegacy(value)];
+			int start = 0;
+			for(int i = 0; i < array.length; i++)
+			{
+				int end = nextSeparator(value, start);
+				array[i] = Boolean.parseBoolean(value.substring(start, end));
+				start = end + 1;
+			}
+
+			return array;
+		}
+
+		ByteBuffer buffer = unwrap(BOOLEAN, value);
+		boolean[] array = new boolean[buffer.getInt()];
+		byte[] bytes = buffer.array();
+		int offset = buffer.arrayOffset() + buffer.position();
+		for(int i = 0; i < array.length; i++)
+			array[i] = (bytes[offset + (i >> 3)] & (1 << (i & 7))) != 0;
+
+		return array;
+	}
+
+	/**
+	 * Decodes int matrix XxY straight into rows
+	 *
+	 * @param value value from preferences
+	 * @param x     first dimension of matrix
+	 * @param y     second dimension of matrix
+	 * @return matrix of integers
+	 */
+	public static int[][] decodeIntMatrix(String value, int x, int y)
+	{
+		int[][] matrix = new int[x][y];
+
+		if(!isPacked(value))
+		{
+			int[] array = decodeIntArray(value);
+			checkSize(array.length, x, y);
+			for(int i = 0; i < x; i++)
+				System.arraycopy(array, i * y, matrix[i], 0, y);
+
+			return matrix;
+		}
+
+		ByteBuffer buffer = unwrap(INT, value);
+		checkSize(buffer.getInt(), x, y);
+		IntBuffer ints = buffer.asIntBuffer();
+		for(int i = 0; i < x; i++)
+			ints.get(matrix[i]);
+
+		return matrix;
+	}
+
+	/**
+	 * Decodes float matrix XxY straight into rows
+	 *
+	 * @param value value from preferences
+	 * @param x     first dimension of matrix
+	 * @param y     second dimension of matrix
+	 * @return matrix of floats
+	 */
+	public static float[][] decodeFloatMatrix(String value, int x, int y)
+	{
+		float[][] matrix = new float[x][y];
+
+		if(!isPacked(value))
+		{
+			float[] array = decodeFloatArray(value);
+			checkSize(array.length, x, y);
+			for(int i = 0; i < x; i++)
+				System.arraycopy(array, i * y, matrix[i], 0, y);
+
+			return matrix;
+		}
+
+		ByteBuffer buffer = unwrap(FLOAT, value);
+		checkSize(buffer.getInt(), x, y);
+		FloatBuffer floats = buffer.asFloatBuffer();
+		for(int i = 0; i < x; i++)
+			floats.get(matrix[i]);
+
+		return matrix;
+	}
+
+	/**
+	 * Decodes double matrix XxY straight into rows
+	 *
+	 * @param value value from preferences
+	 * @param x     first dimension of matrix
+	 * @param y     second dimension of matrix
+	 * @return matrix of doubles
+	 */
+	public static double[][] decodeDoubleMatrix(String value, int x, int y)
+	{
+		double[][] matrix = new double[x][y];
+
+		if(!isPacked(value))
+		{
+			double[] array = decodeDoubleArray(value);
+			checkSize(array.length, x, y);
+			for(int i = 0; i < x; i++)
+				System.arraycopy(array, i * y, matrix[i], 0, y);
+
+			return matrix;
+		}
+
+		ByteBuffer buffer = unwrap(DOUBLE, value);
+		checkSize(buffer.getInt(), x, y);
+		DoubleBuffer doubles = buffer.asDoubleBuffer();
+		for(int i = 0; i < x; i++)
+			doubles.get(matrix[i]);
+
+		return matrix;
+	}
+
+	/**
+	 * Decodes boolean matrix XxY
+	 *
+	 * @param value value from preferences
+	 * @param x     first dimension of matrix
+	 * @param y     second dimension of matrix
+	 * @return matrix of booleans
+	 */
+	public static boolean[][] decodeBooleanMatrix(String value, int x, int y)
+	{
+		boolean[] array = decodeBooleanArray(value);
+		checkSize(array.length, x, y);
+
+		boolean[][] matrix = new boolean[x][y];
+		for(int i = 0; i < x; i++)
+			System.arraycopy(array, i * y, matrix[i], 0, y);
+
+		return matrix;
+	}
+
+	/**
+	 * Returns true if value was compressed by compress
+	 *
+	 * @param value value from preferences
+	 * @return true if value is compressed
+	 */
+	public static boolean isCompressed(String value)
+	{
+		return value != null && value.startsWith(COMPRESSED_PREFIX);
+	}
+
+	/**
+	 * Compresses string by Deflater
+	 *
+	 * @param value string for compressing
+	 * @return compressed value
+	 */
+	public static String compress(String value)
+	{
+		byte[] input = utf8(value);
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+
+		try
+		{
+			deflater.setInput(input);
+			deflater.finish();
+
+			output.write(input.length);
+			output.write(input.length >>> 8);
+			output.write(input.length >>> 16);
+			output.write(input.length >>> 24);
+
+			byte[] buffer = new byte[8192];
+			while(!deflater.finished())
+				output.write(buffer, 0, deflater.deflate(buffer));
+		}
+		finally
+		{
+			deflater.end();
+		}
+
+		return COMPRESSED_PREFIX + Base64.encodeToString(output.toByteArray(), Base64.NO_WRAP);
+	}
+
+	/**
+	 * Decompresses value, compressed by compress
+	 * Not compressed values are returned as is
+	 *
+	 * @param value value from preferences
+	 * @throws IllegalArgumentException if compressed value is broken
+	 * @return original string
+	 */
+	public static String decompress(String value)
+	{
+		if(!isCompressed(value))
+			return value;
+
+		byte[] input = Base64.decode(value.substring(COMPRESSED_PREFIX.length()), Base64.NO_WRAP);
+		if(input.length < 4)
+			throw new IllegalArgumentException("Compressed value is broken");
+
+		/*
+		 * Length is checked before allocation, so broken header can not cause NegativeArraySizeException or OutOfMemoryError
+		 */
+		int outputLength = ByteBuffer.wrap(input, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		if(outputLength < 0 || outputLength > (long)(input.length - 4) * MAX_INFLATE_RATIO)
+			throw new IllegalArgumentException("Compressed value is broken: wrong length " + outputLength);
+
+		byte[] output = new byte[outputLength];
+
+		Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput(input, 4, input.length - 4);
+
+			int length = 0;
+			while(length < output.length)
+			{
+				int inflated = inflater.inflate(output, length, output.length - length);
+				if(inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new IllegalArgumentException("Compressed value is broken");
+
+				length += inflated;
+			}
+		}
+		catch(DataFormatException e)
+		{
+			throw new IllegalArgumentException("Compressed value is broken", e);
+		}
+		finally
+		{
+			inflater.end();
+		}
+
+		try
+		{
+			return new String(output, "UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] utf8(String value)
+	{
+		try
+		{
+			return value.getBytes("UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Allocates little-endian buffer and writes elements count into it
+	 * Position of returned buffer is right after count, so views created by asXXXBuffer starts at first element
+	 */
+	private static ByteBuffer allocate(int count, int elementSize)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(4 + count * elementSize).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(count);
+		return buffer;
+	}
+
+	private static String wrap(char type, ByteBuffer buffer)
+	{
+		return new StringBuilder(HEADER_LENGTH + buffer.capacity() * 4 / 3 + 4)
+				.append(PREFIX)
+				.append(type)
+				.append(':')
+				.append(Base64.encodeToString(buffer.array(), Base64.NO_WRAP))
+				.toString();
+	}
+
+	private static ByteBuffer unwrap(char type, String value)
+	{
+		if(value.charAt(PREFIX.length()) != type)
+			throw new IllegalArgumentException("Packed value has type '" + value.charAt(PREFIX.length()) + "', but '" + type + "' requested");
+
+		byte[] bytes = Base64.decode(value.substring(HEADER_LENGTH), Base64.NO_WRAP);
+		return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int count(int[][] matrix)
+	{
+		int count = 0;
+		for(int[] row : matrix)
+			count += row.length;
+
+		return count;
+	}
+
+	private static int count(float[][] matrix)
+	{
+		int count = 0;
+		for(float[] row : matrix)
+			count += row.length;
+
+		return count;
+	}
+
+	private static int count(double[][] matrix)
+	{
+		int count = 0;
+		for(double[] row : matrix)
+			count += row.length;
+
+		return count;
+	}
+
+	private static int count(boolean[][] matrix)
+	{
+		int count = 0;
+		for(boolean[] row : matrix)
+			count += row.length;
+
+		return count;
+	}
+
+	private static void checkSize(int count, int x, int y)
+	{
+		if(count < x * y)
+			throw new IllegalArgumentException("Matrix contains " + count + " elements, but " + x + "x" + y + " requested");
+	}
+
+	private static int countLegacy(String value)
+	{
+		int count = 1;
+		for(int i = 0; i < value.length(); i++)
+			if(value.charAt(i) == LEGACY_SEPARATOR)
+				count++;
+
+		return count;
+	}
+
+	private static int nextSeparator(String value, int from)
+	{
+		int index = value.indexOf(LEGACY_SEPARATOR, from);
+		return index == -1 ? value.length() : index;
+	}
+}
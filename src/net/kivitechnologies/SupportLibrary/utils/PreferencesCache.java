@@ -0,0 +1,403 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import android.content.SharedPreferences;
+
+/**
+ * Read-through cache of SharedPreferences values
+ * Used by SavingUtils for reading ints, longs, floats and decoded arrays without lock and boxing
+ *
+ * Values are kept in open-addressing maps, one map for every primitive type, entries keep values unboxed in final fields
+ * Readers take current table without any lock. Writers change table in place under lock of cache and publish it by volatile write,
+ * so filling of cache costs amortized O(1) per value; table is copied only when it grows
+ * Keys, which are absent in preferences, are cached too, so misses do not call SharedPreferences.contains again
+ *
+ * Cache is refreshed by OnSharedPreferenceChangeListener, SavingUtils invalidates keys, saved by it, also
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class PreferencesCache implements SharedPreferences.OnSharedPreferenceChangeListener
+{
+	/**
+	 * Capacity of empty tables, must be power of two
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Entry of removed key, it keeps chains of linear probing unbroken for readers
+	 */
+	private static final Entry REMOVED = new Entry(null);
+
+	private final EntryMap ints = new EntryMap();
+	private final EntryMap longs = new EntryMap();
+	private final EntryMap floats = new EntryMap();
+	private final EntryMap arrays = new EntryMap();
+
+	/**
+	 * Keys, which were not found in preferences
+	 */
+	private final EntryMap absent = new EntryMap();
+
+	/**
+	 * Counter of invalidations, guarded by this object as all changes of maps
+	 */
+	private volatile int generation;
+
+	/**
+	 * Returns int value from cache, or reads it from preferences and caches it
+	 *
+	 * @param prefs preferences for reading on miss
+	 * @param name  name of value
+	 * @param def   default value
+	 * @return int value by given name or default value if this name not found
+	 */
+	public int getInt(SharedPreferences prefs, String name, int def)
+	{
+		IntEntry entry = (IntEntry)ints.get(name);
+		if(entry != null)
+			return entry.value;
+
+		int generation = this.generation;
+		if(isAbsent(prefs, name, generation))
+			return def;
+
+		int value = prefs.getInt(name, def);
+		put(ints, new IntEntry(name, value), generation);
+		return value;
+	}
+
+	/**
+	 * Returns long value from cache, or reads it from preferences and caches it
+	 *
+	 * @param prefs preferences for reading on miss
+	 * @param name  name of value
+	 * @param def   default value
+	 * @return long value by given name or default value if this name not found
+	 */
+	public long getLong(SharedPreferences prefs, String name, long def)
+	{
+		LongEntry entry = (LongEntry)longs.get(name);
+		if(entry != null)
+			return entry.value;
+
+		int generation = this.generation;
+		if(isAbsent(prefs, name, generation))
+			return def;
+
+		long value = prefs.getLong(name, def);
+		put(longs, new LongEntry(name, value), generation);
+		return value;
+	}
+
+	/**
+	 * Returns float value from cache, or reads it from preferences and caches it
+	 *
+	 * @param prefs preferences for reading on miss
+	 * @param name  name of value
+	 * @param def   default value
+	 * @return float value by given name or default value if this name not found
+	 */
+	public float getFloat(SharedPreferences prefs, String name, float def)
+	{
+		FloatEntry entry = (FloatEntry)floats.get(name);
+		if(entry != null)
+			return entry.value;
+
+		int generation = this.generation;
+		if(isAbsent(prefs, name, generation))
+			return def;
+
+		float value = prefs.getFloat(name, def);
+		put(floats, new FloatEntry(name, value), generation);
+		return value;
+	}
+
+	/**
+	 * Returns decoded array, cached by putArray
+	 *
+	 * @param name name of array
+	 * @param type class of array, e.g. int[].class
+	 * @return cached array or null if it is not cached or has another type
+	 */
+	public Object getArray(String name, Class<?> type)
+	{
+		ObjectEntry entry = (ObjectEntry)arrays.get(name);
+		if(entry != null && entry.value.getClass() == type)
+			return entry.value;
+
+		return null;
+	}
+
+	/**
+	 * Caches decoded array
+	 * Array must not be changed after caching, so copy of it must be returned to user
+	 *
+	 * @param name       name of array
+	 * @param array      decoded array
+	 * @param generation generation of cache, returned by getGeneration before reading value from preferences
+	 */
+	public void putArray(String name, Object array, int generation)
+	{
+		put(arrays, new ObjectEntry(name, array), generation);
+	}
+
+	/**
+	 * Returns current generation of cache. It is changed on every invalidation
+	 * Value, read from preferences, is cached only if generation was not changed while reading
+	 *
+	 * @return current generation
+	 */
+	public int getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Removes value from cache
+	 *
+	 * @param name name of value
+	 */
+	public synchronized void invalidate(String name)
+	{
+		generation++;
+		ints.remove(name);
+		longs.remove(name);
+		floats.remove(name);
+		arrays.remove(name);
+		absent.remove(name);
+	}
+
+	/**
+	 * Removes all values from cache
+	 */
+	public synchronized void invalidateAll()
+	{
+		generation++;
+		ints.clear();
+		longs.clear();
+		floats.clear();
+		arrays.clear();
+		absent.clear();
+	}
+
+	public void onSharedPreferenceChanged(SharedPreferences prefs, String key)
+	{
+		if(key == null)
+			invalidateAll();
+		else
+			invalidate(key);
+	}
+
+	/**
+	 * Checks, whether preferences contain key, absence is cached
+	 *
+	 * @return true if key is absent in preferences
+	 */
+	private boolean isAbsent(SharedPreferences prefs, String name, int generation)
+	{
+		if(absent.get(name) != null)
+			return true;
+		if(prefs.contains(name))
+			return false;
+
+		put(absent, new Entry(name), generation);
+		return true;
+	}
+
+	/**
+	 * Puts entry into map, if cache was not invalidated since reading of value
+	 */
+	private synchronized void put(EntryMap map, Entry entry, int generation)
+	{
+		if(generation == this.generation)
+			map.put(entry);
+	}
+
+	private static int hash(String key)
+	{
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Cached key, it is used as is for absent keys
+	 */
+	private static class Entry
+	{
+		final String key;
+
+		Entry(String key)
+		{
+			this.key = key;
+		}
+	}
+
+	private static final class IntEntry extends Entry
+	{
+		final int value;
+
+		IntEntry(String key, int value)
+		{
+			super(key);
+			this.value = value;
+		}
+	}
+
+	private static final class LongEntry extends Entry
+	{
+		final long value;
+
+		LongEntry(String key, long value)
+		{
+			super(key);
+			this.value = value;
+		}
+	}
+
+	private static final class FloatEntry extends Entry
+	{
+		final float value;
+
+		FloatEntry(String key, float value)
+		{
+			super(key);
+			this.value = value;
+		}
+	}
+
+	private static final class ObjectEntry extends Entry
+	{
+		final Object value;
+
+		ObjectEntry(String key, Object value)
+		{
+			super(key);
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Open-addressing map String -> Entry with linear probing
+	 * Entries are immutable, so reader, which sees entry in table, sees its value, written in constructor
+	 * Changes are made under lock of cache, table is filled at most by half, including removed slots
+	 */
+	private static final class EntryMap
+	{
+		volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+
+		/**
+		 * Count of entries and count of used slots, including removed ones, guarded by lock of cache
+		 */
+		int size, used;
+
+		/**
+		 * Returns entry by key without lock
+		 *
+		 * @return entry or null if key is not cached
+		 */
+		Entry get(String key)
+		{
+			Entry[] table = this.table;
+			int mask = table.length - 1;
+			for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask)
+			{
+				Entry current = table[slot];
+				if(current == null)
+					return null;
+				if(current != REMOVED && (current.key == key || current.key.equals(key)))
+					return current;
+			}
+		}
+
+		void put(Entry entry)
+		{
+			if((used + 1) * 2 > table.length)
+				rehash(size + 1);
+
+			Entry[] table = this.table;
+			int mask = table.length - 1;
+			int free = -1;
+			for(int slot = hash(entry.key) & mask; ; slot = (slot + 1) & mask)
+			{
+				Entry current = table[slot];
+				if(current == null)
+				{
+					if(free < 0)
+					{
+						free = slot;
+						used++;
+					}
+					break;
+				}
+
+				if(current == REMOVED)
+				{
+					if(free < 0)
+						free = slot;
+				}
+				else if(current.key.equals(entry.key))
+				{
+					free = slot;
+					size--;
+					break;
+				}
+			}
+
+			size++;
+			table[free] = entry;
+			this.table = table;
+		}
+
+		void remove(String key)
+		{
+			Entry[] table = this.table;
+			int mask = table.length - 1;
+			for(int slot = hash(key) & mask; ; slot = (slot + 1) & mask)
+			{
+				Entry current = table[slot];
+				if(current == null)
+					return;
+
+				if(current != REMOVED && current.key.equals(key))
+				{
+					table[slot] = REMOVED;
+					size--;
+					this.table = table;
+					return;
+				}
+			}
+		}
+
+		void clear()
+		{
+			table = new Entry[INITIAL_CAPACITY];
+			size = used = 0;
+		}
+
+		/**
+		 * Copies entries into new table, which is filled at most by half, removed slots are dropped
+		 */
+		private void rehash(int size)
+		{
+			int capacity = INITIAL_CAPACITY;
+			while(capacity < size * 2)
+				capacity <<= 1;
+
+			Entry[] old = this.table, table = new Entry[capacity];
+			int mask = capacity - 1;
+			for(Entry entry : old)
+			{
+				if(entry == null || entry == REMOVED)
+					continue;
+
+				int slot = hash(entry.key) & mask;
+				while(table[slot] != null)
+					slot = (slot + 1) & mask;
+				table[slot] = entry;
+			}
+
+			this.table = table;
+			used = this.size;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+
+/**
+ * Streaming snapshot of SharedPreferences, used by SavingUtils for backup and migration
+ *
+ * Snapshot: <MAGIC><VERSION><record>...<END>
+ * Record:   <type tag><key><value>
+ * Strings are written as int length and UTF-8 bytes, so values longer than 64 KB are supported
+ *
+ * Values are written and read one by one through buffered streams, so whole snapshot is never kept in memory
+ * Values for writing are taken by SharedPreferences.getAll, which copies map of values; ShardedPreferences are written
+ * shard by shard, so only one shard is copied at a time
+ * Values are copied raw: packed arrays and compressed strings stay packed and compressed
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public final class PreferencesSnapshot
+{
+	/**
+	 * MAGIC first int of snapshot
+	 * VERSION version of snapshot format
+	 * BUFFER_SIZE size of I/O chunks
+	 */
+	private static final int MAGIC = 0x4B534E50, VERSION = 1, BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Type tags of records
+	 */
+	private static final byte END = 0, INT = 1, LONG = 2, FLOAT = 3, BOOLEAN = 4, STRING = 5, STRING_SET = 6;
+
+	private PreferencesSnapshot()
+	{
+
+	}
+
+	/**
+	 * Writes all values of preferences into stream
+	 * Stream is flushed, but not closed
+	 *
+	 * @param prefs  preferences for exporting
+	 * @param stream target stream
+	 * @throws IOException if stream can not be written
+	 * @return count of written values
+	 */
+	public static int write(SharedPreferences prefs, OutputStream stream) throws IOException
+	{
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+		output.writeInt(MAGIC);
+		output.writeInt(VERSION);
+
+		int count = 0;
+		if(prefs instanceof ShardedPreferences)
+		{
+			ShardedPreferences sharded = (ShardedPreferences)prefs;
+			for(int i = 0; i < sharded.getShardsCount(); i++)
+				count += writeValues(output, sharded.shard(i));
+		}
+		else
+		{
+			count = writeValues(output, prefs);
+		}
+
+		output.writeByte(END);
+		output.flush();
+
+		return count;
+	}
+
+	/**
+	 * Writes records of all values of preferences
+	 *
+	 * @return count of written values
+	 */
+	@SuppressWarnings("unchecked")
+	private static int writeValues(DataOutputStream output, SharedPreferences prefs) throws IOException
+	{
+		int count = 0;
+		for(Map.Entry<String, ?> entry : prefs.getAll().entrySet())
+		{
+			String key = entry.getKey();
+			Object value = entry.getValue();
+
+			if(value instanceof Integer)
+			{
+				writeKey(output, INT, key);
+				output.writeInt((Integer)value);
+			}
+			else if(value instanceof Long)
+			{
+				writeKey(output, LONG, key);
+				output.writeLong((Long)value);
+			}
+			else if(value instanceof Float)
+			{
+				writeKey(output, FLOAT, key);
+				output.writeFloat((Float)value);
+			}
+			else if(value instanceof Boolean)
+			{
+				writeKey(output, BOOLEAN, key);
+				output.writeBoolean((Boolean)value);
+			}
+			else if(value instanceof String)
+			{
+				writeKey(output, STRING, key);
+				writeString(output, (String)value);
+			}
+			else if(value instanceof Set)
+			{
+				Set<String> set = (Set<String>)value;
+				writeKey(output, STRING_SET, key);
+				output.writeInt(set.size());
+				for(String item : set)
+					writeString(output, item);
+			}
+			else
+			{
+				continue;
+			}
+
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Reads all values from stream into editor
+	 * Editor is not committed, so caller can apply whole snapshot by one commit
+	 *
+	 * @param stream source stream
+	 * @param editor editor for putting values
+	 * @throws IOException if stream can not be read or it is not a snapshot
+	 * @return count of read values
+	 */
+	public static int read(InputStream stream, SharedPreferences.Editor editor) throws IOException
+	{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+
+		if(input.readInt() != MAGIC)
+			throw new IOException("Stream does not contain snapshot of preferences");
+
+		int version = input.readInt();
+		if(version != VERSION)
+			throw new IOException("Snapshot version " + version + " is not supported");
+
+		int count = 0;
+		while(true)
+		{
+			byte type = input.readByte();
+			if(type == END)
+				return count;
+
+			String key = readString(input);
+
+			switch(type)
+			{
+				case INT:
+					editor.putInt(key, input.readInt());
+					break;
+				case LONG:
+					editor.putLong(key, input.readLong());
+					break;
+				case FLOAT:
+					editor.putFloat(key, input.readFloat());
+					break;
+				case BOOLEAN:
+					editor.putBoolean(key, input.readBoolean());
+					break;
+				case STRING:
+					editor.putString(key, readString(input));
+					break;
+				case STRING_SET:
+					int size = input.readInt();
+					Set<String> set = new HashSet<String>(size * 2);
+					for(int i = 0; i < size; i++)
+						set.add(readString(input));
+					editor.putStringSet(key, set);
+					break;
+				default:
+					throw new IOException("Unknown type tag " + type + " of value \"" + key + "\"");
+			}
+
+			count++;
+		}
+	}
+
+	private static void writeKey(DataOutputStream output, byte type, String key) throws IOException
+	{
+		output.writeByte(type);
+		writeString(output, key);
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes("UTF-8");
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(DataInputStream input) throws IOException
+	{
+		int length = input.readInt();
+		if(length < 0)
+			throw new IOException("Snapshot is broken: negative length of string");
+
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
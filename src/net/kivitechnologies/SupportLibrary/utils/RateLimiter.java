@@ -0,0 +1,502 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Base class of operators, which limit rate of events, e.g. text changes, progress ticks or taps
+ * Events can be submitted from any thread, every operator keeps only latest value and delivers it to action
+ *
+ * debounce     - delivers latest value, when no events were submitted during interval
+ * throttle     - delivers latest value at most once per interval, first value is delivered at once
+ * mergeLatest  - delivers latest value as soon as previous delivery is finished
+ *
+ * Actions are called on thread of Handler or on Executor (e.g. lane of ThreadUtils), one by one
+ * Submitting of event does not allocate objects, so rapid event streams cost one call of action per interval
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public abstract class RateLimiter<T>
+{
+	/**
+	 * Id of shared timer thread in ThreadUtils, used by limiters, which deliver values to Executor
+	 */
+	private static int timerThread = -1;
+
+	/**
+	 * timer handler for delays
+	 * executor executor for actions or null if actions are called on thread of timer
+	 */
+	protected final Handler timer;
+	private final Executor executor;
+	private final Action<T> action;
+
+	/**
+	 * Latest value and state of delivery, guarded by this object
+	 */
+	private T value;
+	private boolean hasValue, delivering;
+
+	private final Runnable timerTask = new Runnable()
+	{
+		public void run()
+		{
+			onTimer();
+		}
+	};
+
+	private final Runnable deliverTask = new Runnable()
+	{
+		public void run()
+		{
+			drain();
+		}
+	};
+
+	/**
+	 * Action, which receives values
+	 */
+	public static interface Action<T>
+	{
+		/**
+		 * Called with latest value
+		 *
+		 * @param value latest submitted value
+		 */
+		public void run(T value);
+	}
+
+	/**
+	 * Creates debouncer
+	 *
+	 * @param handler  handler, on thread of which action is called
+	 * @param interval interval of silence in milliseconds
+	 * @param action   action
+	 * @return debouncer
+	 */
+	public static <T> RateLimiter<T> debounce(Handler handler, long interval, Action<T> action)
+	{
+		return new Debouncer<T>(handler, null, interval, action);
+	}
+
+	/**
+	 * Creates debouncer, which calls action on executor
+	 *
+	 * @param executor executor of action
+	 * @param interval interval of silence in milliseconds
+	 * @param action   action
+	 * @return debouncer
+	 */
+	public static <T> RateLimiter<T> debounce(Executor executor, long interval, Action<T> action)
+	{
+		return new Debouncer<T>(sharedTimer(), executor, interval, action);
+	}
+
+	/**
+	 * Creates throttler
+	 *
+	 * @param handler  handler, on thread of which action is called
+	 * @param interval min interval between calls of action in milliseconds
+	 * @param action   action
+	 * @return throttler
+	 */
+	public static <T> RateLimiter<T> throttle(Handler handler, long interval, Action<T> action)
+	{
+		return new Throttler<T>(handler, null, interval, action);
+	}
+
+	/**
+	 * Creates throttler, which calls action on executor
+	 *
+	 * @param executor executor of action
+	 * @param interval min interval between calls of action in milliseconds
+	 * @param action   action
+	 * @return throttler
+	 */
+	public static <T> RateLimiter<T> throttle(Executor executor, long interval, Action<T> action)
+	{
+		return new Throttler<T>(sharedTimer(), executor, interval, action);
+	}
+
+	/**
+	 * Creates limiter, which merges values submitted while action is called or waits for call
+	 *
+	 * @param handler handler, on thread of which action is called
+	 * @param action  action
+	 * @return limiter
+	 */
+	public static <T> RateLimiter<T> mergeLatest(Handler handler, Action<T> action)
+	{
+		return new LatestMerger<T>(handler, null, action);
+	}
+
+	/**
+	 * Creates limiter, which merges values submitted while action is called or waits for call, action is called on executor
+	 *
+	 * @param executor executor of action
+	 * @param action   action
+	 * @return limiter
+	 */
+	public static <T> RateLimiter<T> mergeLatest(Executor executor, Action<T> action)
+	{
+		return new LatestMerger<T>(null, executor, action);
+	}
+
+	private static synchronized Handler sharedTimer()
+	{
+		if(timerThread < 0 || ThreadUtils.getHandlerById(timerThread) == null)
+			timerThread = ThreadUtils.createNewThread(null);
+
+		return ThreadUtils.getHandlerById(timerThread);
+	}
+
+	protected RateLimiter(Handler timer, Executor executor, Action<T> action)
+	{
+		this.timer = timer;
+		this.executor = executor;
+		this.action = action;
+	}
+
+	/**
+	 * Submits event
+	 *
+	 * @param value value of event
+	 */
+	public void submit(T value)
+	{
+		synchronized(this)
+		{
+			this.value = value;
+			hasValue = true;
+		}
+
+		onSubmit();
+	}
+
+	/**
+	 * Drops pending value, action is not called for it
+	 */
+	public void cancel()
+	{
+		synchronized(this)
+		{
+			value = null;
+			hasValue = false;
+		}
+
+		if(timer != null)
+			timer.removeCallbacks(timerTask);
+		onCancel();
+	}
+
+	/**
+	 * Called after value was stored
+	 */
+	protected abstract void onSubmit();
+
+	/**
+	 * Called on thread of timer, when delay is passed
+	 */
+	protected void onTimer()
+	{
+
+	}
+
+	/**
+	 * Called after pending value was dropped
+	 */
+	protected void onCancel()
+	{
+
+	}
+
+	/**
+	 * Called when delivery of value is started
+	 */
+	protected void onDeliver()
+	{
+
+	}
+
+	/**
+	 * Called after delivery of one value, if other value is still pending or delivery failed
+	 * Operators with timer arm it again here, values are never delivered without timer
+	 */
+	protected void onPending()
+	{
+
+	}
+
+	/**
+	 * Returns true if all pending values are delivered by one delivery, one after another
+	 * Operators with timer deliver one value per firing of timer
+	 */
+	protected boolean isMerging()
+	{
+		return false;
+	}
+
+	/**
+	 * Calls onTimer after delay
+	 */
+	protected final void schedule(long delay)
+	{
+		timer.postDelayed(timerTask, delay);
+	}
+
+	/**
+	 * Delivers latest value to action
+	 *
+	 * @param onTimer true if it is called on thread of timer, so action can be called at once
+	 */
+	protected final void deliver(boolean onTimer)
+	{
+		synchronized(this)
+		{
+			if(delivering || !hasValue)
+				return;
+
+			delivering = true;
+		}
+
+		onDeliver();
+
+		try
+		{
+			if(executor != null)
+				executor.execute(deliverTask);
+			else if(onTimer)
+				drain();
+			else
+				timer.post(deliverTask);
+		}
+		catch(RuntimeException e)
+		{
+			/*
+			 * Executor rejected delivery, value stays pending. On thread of timer delivery is retried later,
+			 * because exception would kill shared timer thread
+			 */
+			synchronized(this)
+			{
+				delivering = false;
+			}
+
+			if(!onTimer || isMerging())
+				throw e;
+
+			onPending();
+		}
+	}
+
+	/**
+	 * Calls action with pending value, merging operator calls it while new values are submitted
+	 * Action is never called concurrently
+	 */
+	private void drain()
+	{
+		boolean merging = isMerging(), delivered = false, pending;
+
+		try
+		{
+			while(true)
+			{
+				T value;
+				synchronized(this)
+				{
+					if(!hasValue || (delivered && !merging))
+						break;
+
+					value = this.value;
+					this.value = null;
+					hasValue = false;
+				}
+
+				action.run(value);
+				delivered = true;
+			}
+		}
+		finally
+		{
+			/*
+			 * Flag is reset even if action throws, otherwise limiter would never deliver again
+			 */
+			synchronized(this)
+			{
+				delivering = false;
+				pending = hasValue;
+			}
+		}
+
+		if(pending && !merging)
+			onPending();
+	}
+
+	/**
+	 * Debounce operator
+	 */
+	private static class Debouncer<T> extends RateLimiter<T>
+	{
+		private final long interval;
+
+		/**
+		 * Time of last event and state of timer, guarded by this object
+		 */
+		private long lastEvent;
+		private boolean scheduled;
+
+		public Debouncer(Handler timer, Executor executor, long interval, Action<T> action)
+		{
+			super(timer, executor, action);
+			this.interval = interval;
+		}
+
+		@Override
+		protected void onSubmit()
+		{
+			synchronized(this)
+			{
+				lastEvent = SystemClock.uptimeMillis();
+				if(scheduled)
+					return;
+
+				scheduled = true;
+			}
+
+			schedule(interval);
+		}
+
+		@Override
+		protected void onTimer()
+		{
+			long remaining;
+			synchronized(this)
+			{
+				remaining = lastEvent + interval - SystemClock.uptimeMillis();
+				if(remaining <= 0)
+					scheduled = false;
+			}
+
+			/*
+			 * Timer is not moved by every event, it is moved here once per interval
+			 */
+			if(remaining > 0)
+				schedule(remaining);
+			else
+				deliver(true);
+		}
+
+		@Override
+		protected void onPending()
+		{
+			long delay;
+			synchronized(this)
+			{
+				if(scheduled)
+					return;
+
+				scheduled = true;
+				delay = Math.max(0, lastEvent + interval - SystemClock.uptimeMillis());
+			}
+
+			schedule(delay);
+		}
+
+		@Override
+		protected synchronized void onCancel()
+		{
+			scheduled = false;
+		}
+	}
+
+	/**
+	 * Throttle operator
+	 */
+	private static class Throttler<T> extends RateLimiter<T>
+	{
+		private final long interval;
+
+		/**
+		 * Time of last delivery and state of timer, guarded by this object
+		 */
+		private long lastDelivery;
+		private boolean scheduled;
+
+		public Throttler(Handler timer, Executor executor, long interval, Action<T> action)
+		{
+			super(timer, executor, action);
+			this.interval = interval;
+			lastDelivery = -interval;
+		}
+
+		@Override
+		protected void onSubmit()
+		{
+			long delay;
+			synchronized(this)
+			{
+				if(scheduled)
+					return;
+
+				scheduled = true;
+				delay = Math.max(0, lastDelivery + interval - SystemClock.uptimeMillis());
+			}
+
+			schedule(delay);
+		}
+
+		@Override
+		protected void onTimer()
+		{
+			synchronized(this)
+			{
+				scheduled = false;
+			}
+
+			deliver(true);
+		}
+
+		@Override
+		protected synchronized void onDeliver()
+		{
+			lastDelivery = SystemClock.uptimeMillis();
+		}
+
+		@Override
+		protected void onPending()
+		{
+			onSubmit();
+		}
+
+		@Override
+		protected synchronized void onCancel()
+		{
+			scheduled = false;
+		}
+	}
+
+	/**
+	 * Merge-latest operator
+	 */
+	private static class LatestMerger<T> extends RateLimiter<T>
+	{
+		public LatestMerger(Handler handler, Executor executor, Action<T> action)
+		{
+			super(handler, executor, action);
+		}
+
+		@Override
+		protected void onSubmit()
+		{
+			deliver(false);
+		}
+
+		@Override
+		protected boolean isMerging()
+		{
+			return true;
+		}
+	}
+}
@@ -0,0 +1,430 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.os.Looper;
+
+/**
+ * Metrics of one SavingUtils store
+ * Counts reads and writes per type of value, encoded bytes, time of encoding and decoding arrays,
+ * latency of commits and threads, which made calls
+ *
+ * Metrics are collected only if they are enabled by SavingUtils.setMetricsEnabled
+ * Current values are returned by getSnapshot, every call can be observed by Listener
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class SavingMetrics
+{
+	/**
+	 * Count of buckets in commit latency histogram
+	 * Bucket i counts commits, which took less than 2^i microseconds (and not less than 2^(i-1)), last bucket counts all longer commits
+	 */
+	public static final int HISTOGRAM_BUCKETS = 20;
+
+	/**
+	 * Enumeration contains types of values
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static enum ValueType
+	{
+		INT, FLOAT, DOUBLE, LONG, BOOLEAN, STRING, ARRAY, MATRIX
+	}
+
+	/**
+	 * Listener of calls. Called synchronously on thread, which made call, so it must be fast
+	 */
+	public static interface Listener
+	{
+		/**
+		 * Called after value was read
+		 *
+		 * @param type   type of value
+		 * @param name   name of value
+		 * @param thread thread, which read value
+		 */
+		public void onRead(ValueType type, String name, Thread thread);
+
+		/**
+		 * Called after value was put into transaction
+		 *
+		 * @param type   type of value
+		 * @param name   name of value
+		 * @param thread thread, which wrote value
+		 */
+		public void onWrite(ValueType type, String name, Thread thread);
+
+		/**
+		 * Called after transaction was committed or applied
+		 *
+		 * @param nanos        duration of commit or apply
+		 * @param synchronous  true for commit, false for apply
+		 * @param onMainThread true if it was called on main thread
+		 */
+		public void onCommit(long nanos, boolean synchronous, boolean onMainThread);
+	}
+
+	private final AtomicLongArray reads = new AtomicLongArray(ValueType.values().length);
+	private final AtomicLongArray writes = new AtomicLongArray(ValueType.values().length);
+	private final AtomicLongArray commitLatency = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+	/**
+	 * mainThreadReads, mainThreadWrites, mainThreadCommits calls made on main thread
+	 * applies count of asynchronous commits
+	 * bytesEncoded length of all written strings, arrays and matrices after encoding
+	 * encodeNanos, decodeNanos time of encoding and decoding arrays and matrices
+	 */
+	private final AtomicLong mainThreadReads = new AtomicLong(), mainThreadWrites = new AtomicLong(), mainThreadCommits = new AtomicLong();
+	private final AtomicLong applies = new AtomicLong();
+	private final AtomicLong bytesEncoded = new AtomicLong();
+	private final AtomicLong encodeNanos = new AtomicLong(), decodeNanos = new AtomicLong();
+	private final AtomicLong encodeCount = new AtomicLong(), decodeCount = new AtomicLong();
+
+	/**
+	 * Count of calls per thread name
+	 */
+	private final ConcurrentHashMap<String, AtomicLong> threads = new ConcurrentHashMap<String, AtomicLong>();
+
+	private volatile Listener listener;
+
+	/**
+	 * Sets listener of calls
+	 *
+	 * @param listener listener or null for removing it
+	 */
+	public void setListener(Listener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Records read of value
+	 *
+	 * @param type type of value
+	 * @param name name of value
+	 */
+	public void read(ValueType type, String name)
+	{
+		reads.incrementAndGet(type.ordinal());
+		if(countThread())
+			mainThreadReads.incrementAndGet();
+
+		Listener listener = this.listener;
+		if(listener != null)
+			listener.onRead(type, name, Thread.currentThread());
+	}
+
+	/**
+	 * Records write of value
+	 *
+	 * @param type          type of value
+	 * @param name          name of value
+	 * @param encodedLength length of string value after encoding, 0 for primitive values
+	 */
+	public void write(ValueType type, String name, int encodedLength)
+	{
+		writes.incrementAndGet(type.ordinal());
+		bytesEncoded.addAndGet(encodedLength);
+		if(countThread())
+			mainThreadWrites.incrementAndGet();
+
+		Listener listener = this.listener;
+		if(listener != null)
+			listener.onWrite(type, name, Thread.currentThread());
+	}
+
+	/**
+	 * Records encoding of array or matrix
+	 *
+	 * @param nanos duration of encoding
+	 */
+	public void encoded(long nanos)
+	{
+		encodeNanos.addAndGet(nanos);
+		encodeCount.incrementAndGet();
+	}
+
+	/**
+	 * Records decoding of array or matrix
+	 *
+	 * @param nanos duration of decoding
+	 */
+	public void decoded(long nanos)
+	{
+		decodeNanos.addAndGet(nanos);
+		decodeCount.incrementAndGet();
+	}
+
+	/**
+	 * Records commit or apply of transaction
+	 *
+	 * @param nanos       duration of commit or apply
+	 * @param synchronous true for commit, false for apply
+	 */
+	public void committed(long nanos, boolean synchronous)
+	{
+		boolean onMainThread = countThread();
+
+		if(synchronous)
+		{
+			long micros = nanos / 1000;
+			int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+			commitLatency.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+
+			if(onMainThread)
+				mainThreadCommits.incrementAndGet();
+		}
+		else
+		{
+			applies.incrementAndGet();
+		}
+
+		Listener listener = this.listener;
+		if(listener != null)
+			listener.onCommit(nanos, synchronous, onMainThread);
+	}
+
+	/**
+	 * Counts call of current thread
+	 *
+	 * @return true if current thread is main thread
+	 */
+	private boolean countThread()
+	{
+		String name = Thread.currentThread().getName();
+		AtomicLong count = threads.get(name);
+		if(count == null)
+		{
+			AtomicLong created = new AtomicLong();
+			count = threads.putIfAbsent(name, created);
+			if(count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+
+		return Looper.myLooper() == Looper.getMainLooper();
+	}
+
+	/**
+	 * Returns current values of all metrics
+	 *
+	 * @return immutable snapshot of metrics
+	 */
+	public Snapshot getSnapshot()
+	{
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Resets all metrics
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < reads.length(); i++)
+		{
+			reads.set(i, 0);
+			writes.set(i, 0);
+		}
+		for(int i = 0; i < commitLatency.length(); i++)
+			commitLatency.set(i, 0);
+
+		mainThreadReads.set(0);
+		mainThreadWrites.set(0);
+		mainThreadCommits.set(0);
+		applies.set(0);
+		bytesEncoded.set(0);
+		encodeNanos.set(0);
+		decodeNanos.set(0);
+		encodeCount.set(0);
+		decodeCount.set(0);
+		threads.clear();
+	}
+
+	/**
+	 * Immutable snapshot of metrics
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static class Snapshot
+	{
+		private final long[] reads, writes, commitLatency;
+		private final long mainThreadReads, mainThreadWrites, mainThreadCommits, applies;
+		private final long bytesEncoded, encodeNanos, decodeNanos, encodeCount, decodeCount;
+		private final Map<String, Long> threads;
+
+		private Snapshot(SavingMetrics metrics)
+		{
+			reads = toArray(metrics.reads);
+			writes = toArray(metrics.writes);
+			commitLatency = toArray(metrics.commitLatency);
+
+			mainThreadReads = metrics.mainThreadReads.get();
+			mainThreadWrites = metrics.mainThreadWrites.get();
+			mainThreadCommits = metrics.mainThreadCommits.get();
+			applies = metrics.applies.get();
+			bytesEncoded = metrics.bytesEncoded.get();
+			encodeNanos = metrics.encodeNanos.get();
+			decodeNanos = metrics.decodeNanos.get();
+			encodeCount = metrics.encodeCount.get();
+			decodeCount = metrics.decodeCount.get();
+
+			HashMap<String, Long> threads = new HashMap<String, Long>();
+			for(Map.Entry<String, AtomicLong> entry : metrics.threads.entrySet())
+				threads.put(entry.getKey(), entry.getValue().get());
+			this.threads = Collections.unmodifiableMap(threads);
+		}
+
+		private static long[] toArray(AtomicLongArray array)
+		{
+			long[] result = new long[array.length()];
+			for(int i = 0; i < result.length; i++)
+				result[i] = array.get(i);
+
+			return result;
+		}
+
+		/**
+		 * @param type type of values
+		 * @return count of reads of values with this type
+		 */
+		public long getReads(ValueType type)
+		{
+			return reads[type.ordinal()];
+		}
+
+		/**
+		 * @param type type of values
+		 * @return count of writes of values with this type
+		 */
+		public long getWrites(ValueType type)
+		{
+			return writes[type.ordinal()];
+		}
+
+		/**
+		 * @return copy of commit latency histogram, see HISTOGRAM_BUCKETS
+		 */
+		public long[] getCommitLatencyHistogram()
+		{
+			return commitLatency.clone();
+		}
+
+		/**
+		 * @return count of synchronous commits
+		 */
+		public long getCommits()
+		{
+			long commits = 0;
+			for(long count : commitLatency)
+				commits += count;
+
+			return commits;
+		}
+
+		/**
+		 * @return count of asynchronous commits (applies)
+		 */
+		public long getApplies()
+		{
+			return applies;
+		}
+
+		/**
+		 * @return count of reads, made on main thread
+		 */
+		public long getMainThreadReads()
+		{
+			return mainThreadReads;
+		}
+
+		/**
+		 * @return count of writes, made on main thread
+		 */
+		public long getMainThreadWrites()
+		{
+			return mainThreadWrites;
+		}
+
+		/**
+		 * @return count of synchronous commits, made on main thread
+		 */
+		public long getMainThreadCommits()
+		{
+			return mainThreadCommits;
+		}
+
+		/**
+		 * @return length of all written strings, arrays and matrices after encoding
+		 */
+		public long getBytesEncoded()
+		{
+			return bytesEncoded;
+		}
+
+		/**
+		 * @return total time of encoding arrays and matrices in nanoseconds
+		 */
+		public long getEncodeNanos()
+		{
+			return encodeNanos;
+		}
+
+		/**
+		 * @return total time of decoding arrays and matrices in nanoseconds
+		 */
+		public long getDecodeNanos()
+		{
+			return decodeNanos;
+		}
+
+		/**
+		 * @return count of encoded arrays and matrices
+		 */
+		public long getEncodeCount()
+		{
+			return encodeCount;
+		}
+
+		/**
+		 * @return count of decoded arrays and matrices
+		 */
+		public long getDecodeCount()
+		{
+			return decodeCount;
+		}
+
+		/**
+		 * @return count of calls per thread name
+		 */
+		public Map<String, Long> getCallsByThread()
+		{
+			return threads;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder builder = new StringBuilder("SavingMetrics{");
+			for(ValueType type : ValueType.values())
+				builder.append(type).append(": ").append(reads[type.ordinal()]).append('/').append(writes[type.ordinal()]).append(", ");
+
+			return builder.append("commits: ").append(getCommits())
+					.append(" (main thread: ").append(mainThreadCommits).append("), applies: ").append(applies)
+					.append(", main thread reads/writes: ").append(mainThreadReads).append('/').append(mainThreadWrites)
+					.append(", bytes encoded: ").append(bytesEncoded)
+					.append(", encode: ").append(encodeNanos / 1000).append(" us / ").append(encodeCount)
+					.append(", decode: ").append(decodeNanos / 1000).append(" us / ").append(decodeCount)
+					.append(", threads: ").append(threads)
+					.append('}').toString();
+		}
+	}
+}
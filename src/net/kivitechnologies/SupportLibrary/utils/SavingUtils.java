@@ -2,12 +2,42 @@ package net.kivitechnologies.SupportLibrary.utils;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Class for saving some data by using SharedPreferences
  * Forked from Sudoku Project
  * 
+ * Arrays and matrices are saved in packed binary format, see PackedCodec
+ * Values, saved in old text format, are still loaded
+ * 
+ * Storage backend can be replaced by any SharedPreferences implementation, e.g. LogStructuredPreferences or ShardedPreferences
+ * 
+ * Large values can be compressed, see setCompressionThreshold
+ * 
+ * Whole store can be backed up and restored by exportSnapshot and importSnapshot
+ * 
+ * Stores can be loaded on background thread at app start by preload
+ * 
+ * Calls can be measured, see setMetricsEnabled
+ * 
+ * Every put method commits its value at once. For saving many values use beginTransaction
+ * or enable write-behind mode by setWriteBehind
+ * 
  * @author K. V. Bogatikov, KiVITechnologies Ltd, 2016 - 2017
  * @version 1.7
  */
@@ -15,16 +45,62 @@ public class SavingUtils
 {
 	/**
 	 * Used for cache some already created objects
+	 * Objects are keyed by application context and store name, so lookup is constant-time and safe from any thread
+	 */
+	private static final ConcurrentHashMap<Key, SavingUtils> objects = new ConcurrentHashMap<Key, SavingUtils>();
+	
+	/**
+	 * prefs storage backend, null while it is being preloaded
+	 * 
+	 * loading latch, released when preloading of prefs is finished, null if object was not preloaded
+	 * 
+	 * storeName name of preloaded store, used for loading it on caller thread if preloading failed, null if object was not preloaded
+	 */
+	private volatile SharedPreferences prefs;
+	private final CountDownLatch loading;
+	private final String storeName;
+	
+	/**
+	 * ctx Context, on which this object was created. It is held weakly, so Activity can be collected
+	 * 
+	 * appContext application context, used for getting files
 	 */
-	private static ArrayList<SavingUtils> objects;
+	private final WeakReference<Context> ctx;
+	private final Context appContext;
 	
-	static
+	/**
+	 * writeBehind long-living transaction, which collects puts in write-behind mode
+	 * 
+	 * writeBehindWindow time in milliseconds, during which puts are merged, 0 if write-behind mode is disabled
+	 * 
+	 * flushScheduled true if flush of writeBehind transaction is posted, but not executed yet
+	 */
+	private Transaction writeBehind;
+	private volatile long writeBehindWindow;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private Handler flushHandler;
+	private final Runnable flushTask = new Runnable()
 	{
-		objects = new ArrayList<SavingUtils>();
-	}
+		public void run()
+		{
+			flush();
+		}
+	};
 	
-	private SharedPreferences prefs;
-	private Context ctx;
+	/**
+	 * Read-through cache of values, null if caching is disabled
+	 */
+	private volatile PreferencesCache cache;
+	
+	/**
+	 * Strings (and encoded arrays) of this length or longer are compressed, 0 if compression is disabled
+	 */
+	private volatile int compressionThreshold;
+	
+	/**
+	 * Metrics of this store, null if they are disabled
+	 */
+	private volatile SavingMetrics metrics;
 	
 	/**
 	 * Constructor
@@ -34,13 +110,8 @@ public class SavingUtils
 	 */
 	public SavingUtils(Context ctx, String name)
 	{
-		objects.add(this);
-		
-		if(name == null || name.isEmpty())
-			name = ctx.getPackageName();
-			
-		prefs = ctx.getSharedPreferences(name, 0);
-		this.ctx = ctx;
+		this(ctx, ctx.getSharedPreferences(storeName(ctx, name), 0));
+		register(storeName(ctx, name));
 	}
 	
 	/**
@@ -51,7 +122,115 @@ public class SavingUtils
 	 */
 	public SavingUtils(Context ctx)
 	{
-		this(ctx, null);
+		this(ctx, (String)null);
+	}
+	
+	/**
+	 * Constructor
+	 * Uses given storage backend instead of SharedPreferences, returned by Context
+	 * 
+	 * @param ctx     Context, on which this object is created
+	 * @param storage storage backend, e.g. LogStructuredPreferences
+	 */
+	public SavingUtils(Context ctx, SharedPreferences storage)
+	{
+		prefs = storage;
+		loading = null;
+		storeName = null;
+		this.ctx = new WeakReference<Context>(ctx);
+		this.appContext = applicationContext(ctx);
+	}
+	
+	/**
+	 * Constructor for preloading
+	 * Storage backend is set by Preload, when it is loaded
+	 * 
+	 * @param ctx       Context, on which this object is created
+	 * @param loading   latch, released when storage is loaded
+	 * @param storeName name of store
+	 */
+	private SavingUtils(Context ctx, CountDownLatch loading, String storeName)
+	{
+		this.loading = loading;
+		this.storeName = storeName;
+		this.ctx = new WeakReference<Context>(ctx);
+		this.appContext = applicationContext(ctx);
+	}
+	
+	/**
+	 * Caches this object for forContext, if there is no cached object for same store yet
+	 * 
+	 * @param name name of store
+	 */
+	private void register(String name)
+	{
+		objects.putIfAbsent(new Key(appContext, name), this);
+	}
+	
+	/**
+	 * Returns application context of ctx, or ctx itself if it has no application context
+	 */
+	private static Context applicationContext(Context ctx)
+	{
+		Context app = ctx.getApplicationContext();
+		return app != null ? app : ctx;
+	}
+	
+	/**
+	 * Starts loading of stores on background thread
+	 * Returned objects can be used at once: their getters and putters block only if data is not loaded yet
+	 * 
+	 * @param ctx   Context for getting Shared Preferences
+	 * @param names names of stores, name of Context's package is used for null or empty name
+	 * @return handle for waiting and getting preloaded objects
+	 */
+	public static Preload preload(Context ctx, String... names)
+	{
+		Preload preload = new Preload(ctx, names);
+		preload.start();
+		return preload;
+	}
+	
+	/**
+	 * Creates SavingUtils on top of append-only log storage
+	 * Every save costs proportionally to size of change, not to size of whole store
+	 * All instances with same name share one storage, as instances on top of SharedPreferences do
+	 * 
+	 * @param ctx  Context for getting app-private directory
+	 * @param name name of store, name of Context's package if null or empty
+	 * @throws IOException if log can not be read or created
+	 * @return instance of SavingUtils
+	 * @see LogStructuredPreferences
+	 */
+	public static SavingUtils withLogStorage(Context ctx, String name) throws IOException
+	{
+		return new SavingUtils(ctx, LogStructuredPreferences.open(ctx, storeName(ctx, name)));
+	}
+	
+	/**
+	 * Creates SavingUtils on top of store, split into many files by hash of key
+	 * Every save rewrites only files with changed keys, files are loaded in parallel
+	 * 
+	 * @param ctx    Context for getting Shared Preferences
+	 * @param name   name of store, name of Context's package if null or empty
+	 * @param shards count of files, must not be changed for existing store
+	 * @return instance of SavingUtils
+	 * @see ShardedPreferences
+	 */
+	public static SavingUtils withShardedStorage(Context ctx, String name, int shards)
+	{
+		return new SavingUtils(ctx, new ShardedPreferences(ctx, storeName(ctx, name), shards));
+	}
+	
+	/**
+	 * Returns name of store: given name or name of Context's package if it is null or empty
+	 */
+	private static String storeName(Context ctx, String name)
+	{
+		if(name == null || name.isEmpty())
+			return ctx.getPackageName();
+		
+		return name;
 	}
 	
 	/**
@@ -62,7 +241,266 @@ public class SavingUtils
 	 */
 	public boolean isBasedOn(Context ctx)
 	{
-		return this.ctx.equals(ctx);
+		Context base = this.ctx.get();
+		return base != null && base.equals(ctx);
+	}
+	
+	/**
+	 * Enables or disables read-through cache
+	 * Cached ints, longs, floats and doubles are read without lock and boxing,
+	 * cached arrays are not decoded again. Cache is refreshed when preferences are changed
+	 * 
+	 * @param enabled true for enabling cache, false for disabling
+	 */
+	public synchronized void setCacheEnabled(boolean enabled)
+	{
+		if(enabled == (cache != null))
+			return;
+		
+		if(enabled)
+		{
+			cache = new PreferencesCache();
+			storage().registerOnSharedPreferenceChangeListener(cache);
+		}
+		else
+		{
+			storage().unregisterOnSharedPreferenceChangeListener(cache);
+			cache = null;
+		}
+	}
+	
+	/**
+	 * Returns true if read-through cache is enabled
+	 * 
+	 * @return true if values are cached
+	 */
+	public boolean isCacheEnabled()
+	{
+		return cache != null;
+	}
+	
+	/**
+	 * Enables or disables compression of large values
+	 * Strings, arrays and matrices, which are encoded into string of this length or longer, are compressed by Deflater
+	 * Compressed values are detected and decompressed by getters automatically, even if compression is disabled later
+	 * 
+	 * @param threshold minimal length of compressed value in chars, 0 for disabling compression
+	 */
+	public void setCompressionThreshold(int threshold)
+	{
+		if(threshold < 0)
+			throw new IllegalArgumentException("Compression threshold can not be negative: " + threshold);
+		
+		compressionThreshold = threshold;
+	}
+	
+	/**
+	 * Returns minimal length of compressed values
+	 * 
+	 * @return minimal length of compressed value in chars, 0 if compression is disabled
+	 */
+	public int getCompressionThreshold()
+	{
+		return compressionThreshold;
+	}
+	
+	/**
+	 * Compresses value, if it is long enough
+	 * Value, which looks like compressed one, is compressed always, so it is read back unchanged
+	 * 
+	 * @param value string for saving
+	 * @return compressed or original value
+	 */
+	private String encodeString(String value)
+	{
+		if(value == null)
+			return null;
+		
+		if(PackedCodec.isCompressed(value))
+			return PackedCodec.compress(value);
+		
+		int threshold = compressionThreshold;
+		if(threshold == 0 || value.length() < threshold)
+			return value;
+		
+		String compressed = PackedCodec.compress(value);
+		return compressed.length() < value.length() ? compressed : value;
+	}
+	
+	/**
+	 * Enables or disables collecting of metrics: reads and writes per type, encoded bytes,
+	 * commit latency, time of encoding and decoding arrays and threads, which made calls
+	 * Metrics have negligible overhead, when they are disabled
+	 * 
+	 * @param enabled true for enabling metrics, false for disabling and dropping collected ones
+	 */
+	public synchronized void setMetricsEnabled(boolean enabled)
+	{
+		if(enabled == (metrics != null))
+			return;
+		
+		metrics = enabled ? new SavingMetrics() : null;
+	}
+	
+	/**
+	 * Returns metrics of this store. They can be used for getting snapshot or setting listener
+	 * 
+	 * @return metrics or null if they are disabled
+	 */
+	public SavingMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Starts new transaction. Values, put into transaction, are saved by one commit or apply
+	 * 
+	 * @return new transaction for this preferences
+	 */
+	public Transaction beginTransaction()
+	{
+		return new Transaction(storage().edit());
+	}
+	
+	/**
+	 * Enables or disables write-behind mode
+	 * In this mode put methods do not write values at once: all puts, made within window, are merged and saved by one apply
+	 * Getters flush pending values before reading, so saved values are visible at once
+	 * 
+	 * @param windowMillis time in milliseconds during which puts are merged, 0 for disabling write-behind mode
+	 */
+	public synchronized void setWriteBehind(long windowMillis)
+	{
+		if(windowMillis < 0)
+			throw new IllegalArgumentException("Write-behind window can not be negative: " + windowMillis);
+		
+		if(windowMillis > 0)
+		{
+			if(writeBehind == null)
+				writeBehind = beginTransaction();
+			if(flushHandler == null)
+				flushHandler = new Handler(Looper.getMainLooper());
+		}
+		
+		writeBehindWindow = windowMillis;
+		
+		if(windowMillis == 0)
+			flush();
+	}
+	
+	/**
+	 * Returns true if write-behind mode is enabled
+	 * 
+	 * @return true if put methods merge values, false if every put commits value at once
+	 */
+	public boolean isWriteBehind()
+	{
+		return writeBehindWindow > 0;
+	}
+	
+	/**
+	 * Saves all values, put in write-behind mode, but not saved yet
+	 * Values are applied into memory at once and written on disk asynchronously
+	 */
+	public void flush()
+	{
+		if(!flushScheduled.getAndSet(false))
+			return;
+		
+		Transaction transaction;
+		synchronized(this)
+		{
+			transaction = writeBehind;
+		}
+		
+		if(flushHandler != null)
+			flushHandler.removeCallbacks(flushTask);
+		transaction.apply();
+	}
+	
+	/**
+	 * Returns preferences for reading. Pending write-behind values are flushed before
+	 * 
+	 * @return SharedPreferences of this object
+	 */
+	private SharedPreferences preferences()
+	{
+		if(flushScheduled.get())
+			flush();
+		
+		return storage();
+	}
+	
+	/**
+	 * Returns storage backend, waits for it, if it is being preloaded
+	 * 
+	 * @return SharedPreferences of this object
+	 */
+	private SharedPreferences storage()
+	{
+		SharedPreferences prefs = this.prefs;
+		if(prefs != null)
+			return prefs;
+		
+		boolean interrupted = false;
+		while(true)
+		{
+			try
+			{
+				loading.await();
+				break;
+			}
+			catch(InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		
+		if(interrupted)
+			Thread.currentThread().interrupt();
+		
+		/*
+		 * Preloading failed or was rejected, so store is loaded on caller thread and its exception is thrown to caller
+		 */
+		synchronized(loading)
+		{
+			if(this.prefs == null)
+				this.prefs = appContext.getSharedPreferences(storeName, 0);
+			
+			return this.prefs;
+		}
+	}
+	
+	/**
+	 * Returns transaction for put methods: long-living write-behind transaction or new one
+	 * 
+	 * @return transaction for writing one value
+	 */
+	private Transaction openWrite()
+	{
+		if(writeBehindWindow > 0)
+		{
+			synchronized(this)
+			{
+				if(writeBehind != null)
+					return writeBehind;
+			}
+		}
+		
+		return beginTransaction();
+	}
+	
+	/**
+	 * Commits transaction, returned by openWrite, or schedules flush of write-behind transaction
+	 * 
+	 * @param transaction transaction returned by openWrite
+	 */
+	private void closeWrite(Transaction transaction)
+	{
+		if(transaction != writeBehind)
+			transaction.commit();
+		else if(flushScheduled.compareAndSet(false, true))
+			flushHandler.postDelayed(flushTask, writeBehindWindow);
 	}
 	
 	/**
@@ -74,7 +512,12 @@ public class SavingUtils
 	 */
 	public int getInt(String name, int def)
 	{
-		return prefs.getInt(name,  def);
+		recordRead(SavingMetrics.ValueType.INT, name);
+		
+		PreferencesCache cache = this.cache;
+		SharedPreferences prefs = preferences();
+		
+		return cache != null ? cache.getInt(prefs, name, def) : prefs.getInt(name, def);
 	}
 	
 	/**
@@ -85,7 +528,7 @@ public class SavingUtils
 	 */
 	public int getInt(String name)
 	{
-		return prefs.getInt(name, 0);
+		return getInt(name, 0);
 	}
 
 	/**
@@ -97,8 +540,9 @@ public class SavingUtils
 	 */
 	public float getFloat(String name, float def)
 	{
-		return prefs.getFloat(name,  def);
-	}	
+		recordRead(SavingMetrics.ValueType.FLOAT, name);
+		return floatValue(name, def);
+	}
 	
 	/**
 	 * Returns float value from preferences with default value - 0.0f
@@ -108,7 +552,7 @@ public class SavingUtils
 	 */
 	public float getFloat(String name)
 	{
-		return prefs.getFloat(name,  0.0f);
+		return getFloat(name, 0.0f);
 	}
 
 	/**
@@ -120,7 +564,8 @@ public class SavingUtils
 	 */
 	public double getDouble(String name, double def)
 	{
-		return (double)prefs.getFloat(name,  (float)def);
+		recordRead(SavingMetrics.ValueType.DOUBLE, name);
+		return (double)floatValue(name, (float)def);
 	}
 	
 	/**
@@ -132,7 +577,7 @@ public class SavingUtils
 	 */
 	public double getDouble(String name)
 	{
-		return (double)prefs.getFloat(name, 0.0f);
+		return getDouble(name, 0.0);
 	}
 
 	/**
@@ -144,7 +589,12 @@ public class SavingUtils
 	 */
 	public long getLong(String name, long def)
 	{
-		return prefs.getLong(name, def);
+		recordRead(SavingMetrics.ValueType.LONG, name);
+		
+		PreferencesCache cache = this.cache;
+		SharedPreferences prefs = preferences();
+		
+		return cache != null ? cache.getLong(prefs, name, def) : prefs.getLong(name, def);
 	}
 	
 	/**
@@ -156,7 +606,7 @@ public class SavingUtils
 	 */
 	public long getLong(String name)
 	{
-		return prefs.getLong(name, 0);
+		return getLong(name, 0);
 	}
 
 	/**
@@ -168,7 +618,8 @@ public class SavingUtils
 	 */
 	public boolean getBoolean(String name, boolean def)
 	{
-		return prefs.getBoolean(name, def);
+		recordRead(SavingMetrics.ValueType.BOOLEAN, name);
+		return preferences().getBoolean(name, def);
 	}
 	
 	/**
@@ -180,7 +631,7 @@ public class SavingUtils
 	 */
 	public boolean getBoolean(String name)
 	{
-		return prefs.getBoolean(name, false);
+		return getBoolean(name, false);
 	}
 
 	/**
@@ -192,7 +643,10 @@ public class SavingUtils
 	 */
 	public String getString(String name, String def)
 	{
-		return prefs.getString(name, def);
+		recordRead(SavingMetrics.ValueType.STRING, name);
+		
+		String value = rawString(name);
+		return value != null ? value : def;
 	}
 	
 	/**
@@ -204,7 +658,7 @@ public class SavingUtils
 	 */
 	public String getString(String name)
 	{
-		return prefs.getString(name, null);
+		return getString(name, null);
 	}
 
 	/**
@@ -216,19 +670,23 @@ public class SavingUtils
 	 */
 	public int[] getIntArray(String name) throws NoSuchArrayException
 	{
-		String[] str = getString(name, "").split("|");
-		if(str.length == 1 && str[0].isEmpty())
-			throw new NoSuchArrayException("Array or matrix with name \"" + name + "\" not found!");
+		recordRead(SavingMetrics.ValueType.ARRAY, name);
 		
-		int[] array = new int[str.length];
+		PreferencesCache cache = this.cache;
+		if(cache == null)
+			return decodeIntArray(name);
 		
-		for(int i = 0; i < str.length; i++)
+		preferences();
+		
+		int[] array = (int[])cache.getArray(name, int[].class);
+		if(array == null)
 		{
-			Integer n = Integer.parseInt(str[i]);
-			array[i] = n.intValue();
+			int generation = cache.getGeneration();
+			array = decodeIntArray(name);
+			cache.putArray(name, array, generation);
 		}
 		
-		return array;
+		return array.clone();
 	}
 	
 	/**
@@ -240,19 +698,23 @@ public class SavingUtils
 	 */
 	public float[] getFloatArray(String name) throws NoSuchArrayException
 	{
-		String[] str = getString(name, "").split("|");
-		if(str.length == 1 && str[0].isEmpty())
-			throw new NoSuchArrayException("Array or matrix with name \"" + name + "\" not found!");
+		recordRead(SavingMetrics.ValueType.ARRAY, name);
+		
+		PreferencesCache cache = this.cache;
+		if(cache == null)
+			return decodeFloatArray(name);
 		
-		float[] array = new float[str.length];
+		preferences();
 		
-		for(int i = 0; i < str.length; i++)
+		float[] array = (float[])cache.getArray(name, float[].class);
+		if(array == null)
 		{
-			Float n = Float.parseFloat(str[i]);
-			array[i] = n.floatValue();
+			int generation = cache.getGeneration();
+			array = decodeFloatArray(name);
+			cache.putArray(name, array, generation);
 		}
 		
-		return array;
+		return array.clone();
 	}
 
 	/**
@@ -264,19 +726,23 @@ public class SavingUtils
 	 */
 	public double[] getDoubleArray(String name) throws NoSuchArrayException
 	{
-		String[] str = getString(name, "").split("|");
-		if(str.length == 1 && str[0].isEmpty())
-			throw new NoSuchArrayException("Array or matrix with name \"" + name + "\" not found!");
+		recordRead(SavingMetrics.ValueType.ARRAY, name);
+		
+		PreferencesCache cache = this.cache;
+		if(cache == null)
+			return decodeDoubleArray(name);
 		
-		double[] array = new double[str.length];
+		preferences();
 		
-		for(int i = 0; i < str.length; i++)
+		double[] array = (double[])cache.getArray(name, double[].class);
+		if(array == null)
 		{
-			Double n = Double.parseDouble(str[i]);
-			array[i] = n.doubleValue();
+			int generation = cache.getGeneration();
+			array = decodeDoubleArray(name);
+			cache.putArray(name, array, generation);
 		}
 		
-		return array;
+		return array.clone();
 	}
 
 	/**
@@ -288,19 +754,23 @@ public class SavingUtils
 	 */
 	public boolean[] getBooleanArray(String name) throws NoSuchArrayException
 	{
-		String[] str = getString(name, "").split("|");
-		if(str.length == 1 && str[0].isEmpty())
-			throw new NoSuchArrayException("Array or matrix with name \"" + name + "\" not found!");
+		recordRead(SavingMetrics.ValueType.ARRAY, name);
 		
-		boolean[] array = new boolean[str.length];
+		PreferencesCache cache = this.cache;
+		if(cache == null)
+			return decodeBooleanArray(name);
 		
-		for(int i = 0; i < str.length; i++)
+		preferences();
+		
+		boolean[] array = (boolean[])cache.getArray(name, boolean[].class);
+		if(array == null)
 		{
-			Boolean n = Boolean.parseBoolean(str[i]);
-			array[i] = n.booleanValue();
+			int generation = cache.getGeneration();
+			array = decodeBooleanArray(name);
+			cache.putArray(name, array, generation);
 		}
 		
-		return array;
+		return array.clone();
 	}
 
 	/**
@@ -315,15 +785,12 @@ public class SavingUtils
 	 */
 	public int[][] getIntMatrix(String name, int x, int y) throws NoSuchArrayException
 	{
-		int[][] matrix = new int[x][y];
+		recordRead(SavingMetrics.ValueType.MATRIX, name);
 		
-		String[] ints = getString(name + "_MATRIX", "").split("|");
-		if(ints.length == 1 && ints[0].isEmpty())
-			throw new NoSuchArrayException("Array or matrix with name \"" + name + "\" not found!");
-		
-		for(int i = 0; i < x; i++)
-			for(int j = 0; j < y; j++)
-				matrix[i][j] = Integer.parseInt(ints[i * x + j]);
+		String value = getPackedValue(name + "_MATRIX", name);
+		long start = timestamp();
+		int[][] matrix = PackedCodec.decodeIntMatrix(value, x, y);
+		recordDecode(start);
 		
 		return matrix;
 	}
@@ -340,15 +807,12 @@ public class SavingUtils
 	 */
 	public float[][] getFloatMatrix(String name, int x, int y) throws NoSuchArrayException
 	{
-		float[][] matrix = new float[x][y];
-		
-		String[] floats = getString(name + "_MATRIX", "").split("|");
-		if(floats.length == 1 && floats[0].isEmpty())
-			throw new NoSuchArrayException("Array or matrix with name \"" + name + "\" not found!");
+		recordRead(SavingMetrics.ValueType.MATRIX, name);
 		
-		for(int i = 0; i < x; i++)
-			for(int j = 0; j < y; j++)
-				matrix[i][j] = Float.parseFloat(floats[i * x + j]);
+		String value = getPackedValue(name + "_MATRIX", name);
+		long start = timestamp();
+		float[][] matrix = PackedCodec.decodeFloatMatrix(value, x, y);
+		recordDecode(start);
 		
 		return matrix;
 	}
@@ -365,15 +829,12 @@ public class SavingUtils
 	 */
 	public double[][] getDoubleMatrix(String name, int x, int y) throws NoSuchArrayException
 	{
-		double[][] matrix = new double[x][y];
-		
-		String[] doubles = getString(name + "_MATRIX", "").split("|");
-		if(doubles.length == 1 && doubles[0].isEmpty())
-			throw new NoSuchArrayException("Array or matrix with name \"" + name + "\" not found!");
+		recordRead(SavingMetrics.ValueType.MATRIX, name);
 		
-		for(int i = 0; i < x; i++)
-			for(int j = 0; j < y; j++)
-				matrix[i][j] = Double.parseDouble(doubles[i * x + j]);
+		String value = getPackedValue(name + "_MATRIX", name);
+		long start = timestamp();
+		double[][] matrix = PackedCodec.decodeDoubleMatrix(value, x, y);
+		recordDecode(start);
 		
 		return matrix;
 	}
@@ -390,17 +851,170 @@ public class SavingUtils
 	 */
 	public boolean[][] getBooleanMatrix(String name, int x, int y) throws NoSuchArrayException
 	{
-		boolean[][] matrix = new boolean[x][y];
+		recordRead(SavingMetrics.ValueType.MATRIX, name);
+		
+		String value = getPackedValue(name + "_MATRIX", name);
+		long start = timestamp();
+		boolean[][] matrix = PackedCodec.decodeBooleanMatrix(value, x, y);
+		recordDecode(start);
 		
-		String[] booleans = getString(name + "_MATRIX", "").split("|");
-		if(booleans.length == 1 && booleans[0].isEmpty())
+		return matrix;
+	}
+	
+	/**
+	 * Writes all values of this store into stream as compact versioned snapshot
+	 * Stream is flushed, but not closed
+	 * 
+	 * @param stream target stream
+	 * @throws IOException if stream can not be written
+	 * @return count of exported values
+	 * @see PreferencesSnapshot
+	 */
+	public int exportSnapshot(OutputStream stream) throws IOException
+	{
+		return PreferencesSnapshot.write(preferences(), stream);
+	}
+	
+	/**
+	 * Reads snapshot, written by exportSnapshot, and saves all its values by one commit
+	 * Nothing is saved if snapshot is broken
+	 * With ShardedPreferences backend commit is not atomic across shards, so failed import can leave part of values saved
+	 * Pending write-behind values are flushed before, so they do not overwrite imported values later
+	 * 
+	 * @param stream  source stream
+	 * @param replace true if all values, which are not contained in snapshot, must be removed
+	 * @throws IOException if stream can not be read or it is not a snapshot
+	 * @return true if values were successfully written
+	 */
+	public boolean importSnapshot(InputStream stream, boolean replace) throws IOException
+	{
+		flush();
+		
+		Transaction transaction = beginTransaction();
+		if(replace)
+			transaction.clear();
+		
+		PreferencesSnapshot.read(stream, transaction.rawEditor());
+		return transaction.commit();
+	}
+	
+	/**
+	 * Opens matrix, stored in memory-mapped file in app-private directory
+	 * Unlike getIntMatrix and similar methods, it allows to read single cells, rows and sub-rectangles
+	 * without loading whole matrix, and to update rows in place
+	 * 
+	 * @param name    name of matrix
+	 * @param type    type of elements
+	 * @param x       first dimension of matrix
+	 * @param y       second dimension of matrix
+	 * @throws IOException if file can not be mapped or contains matrix with other type or dimensions
+	 * @return mapped matrix, created if it did not exist
+	 */
+	public MappedMatrix openMappedMatrix(String name, MappedMatrix.ElementType type, int x, int y) throws IOException
+	{
+		return MappedMatrix.open(new File(appContext.getDir("matrices", Context.MODE_PRIVATE), name + ".matrix"), type, x, y);
+	}
+	
+	/**
+	 * Returns packed (or saved in old text format) value of array or matrix
+	 * 
+	 * @param key  key of value in preferences
+	 * @param name name of array or matrix, used in exception message
+	 * @throws NoSuchArrayException if this preferences does not contains value with this key
+	 * @return value from preferences
+	 */
+	private String getPackedValue(String key, String name) throws NoSuchArrayException
+	{
+		String value = rawString(key);
+		if(value == null || value.isEmpty())
 			throw new NoSuchArrayException("Array or matrix with name \"" + name + "\" not found!");
 		
-		for(int i = 0; i < x; i++)
-			for(int j = 0; j < y; j++)
-				matrix[i][j] = Boolean.parseBoolean(booleans[i * x + j]);
+		return value;
+	}
+	
+	/**
+	 * Returns decompressed string without recording read
+	 * 
+	 * @param key key of value in preferences
+	 * @return string from preferences or null if this key not found
+	 */
+	private String rawString(String key)
+	{
+		String value = preferences().getString(key, null);
+		return value != null ? PackedCodec.decompress(value) : null;
+	}
+	
+	/**
+	 * Returns float value, used for floats and doubles, without recording read
+	 */
+	private float floatValue(String name, float def)
+	{
+		PreferencesCache cache = this.cache;
+		SharedPreferences prefs = preferences();
 		
-		return matrix;
+		return cache != null ? cache.getFloat(prefs, name, def) : prefs.getFloat(name, def);
+	}
+	
+	private int[] decodeIntArray(String name) throws NoSuchArrayException
+	{
+		String value = getPackedValue(name, name);
+		long start = timestamp();
+		int[] array = PackedCodec.decodeIntArray(value);
+		recordDecode(start);
+		
+		return array;
+	}
+	
+	private float[] decodeFloatArray(String name) throws NoSuchArrayException
+	{
+		String value = getPackedValue(name, name);
+		long start = timestamp();
+		float[] array = PackedCodec.decodeFloatArray(value);
+		recordDecode(start);
+		
+		return array;
+	}
+	
+	private double[] decodeDoubleArray(String name) throws NoSuchArrayException
+	{
+		String value = getPackedValue(name, name);
+		long start = timestamp();
+		double[] array = PackedCodec.decodeDoubleArray(value);
+		recordDecode(start);
+		
+		return array;
+	}
+	
+	private boolean[] decodeBooleanArray(String name) throws NoSuchArrayException
+	{
+		String value = getPackedValue(name, name);
+		long start = timestamp();
+		boolean[] array = PackedCodec.decodeBooleanArray(value);
+		recordDecode(start);
+		
+		return array;
+	}
+	
+	/**
+	 * Returns start time for measuring, or 0 if metrics are disabled
+	 */
+	private long timestamp()
+	{
+		return metrics != null ? System.nanoTime() : 0;
+	}
+	
+	private void recordRead(SavingMetrics.ValueType type, String name)
+	{
+		SavingMetrics metrics = this.metrics;
+		if(metrics != null)
+			metrics.read(type, name);
+	}
+	
+	private void recordDecode(long start)
+	{
+		SavingMetrics metrics = this.metrics;
+		if(metrics != null && start != 0)
+			metrics.decoded(System.nanoTime() - start);
 	}
 	
 	/**
@@ -411,7 +1025,9 @@ public class SavingUtils
 	 */
 	public void putInt(String name, int val)
 	{
-		prefs.edit().putInt(name, val).commit();
+		Transaction transaction = openWrite();
+		transaction.putInt(name, val);
+		closeWrite(transaction);
 	}
 	
 	/**
@@ -422,7 +1038,9 @@ public class SavingUtils
 	 */
 	public void putFloat(String name, float val)
 	{
-		prefs.edit().putFloat(name, val).commit();
+		Transaction transaction = openWrite();
+		transaction.putFloat(name, val);
+		closeWrite(transaction);
 	}
 	
 	/**
@@ -433,7 +1051,9 @@ public class SavingUtils
 	 */
 	public void putDouble(String name, double val)
 	{
-		prefs.edit().putFloat(name, (float)val).commit();
+		Transaction transaction = openWrite();
+		transaction.putDouble(name, val);
+		closeWrite(transaction);
 	}
 	
 	/**
@@ -444,7 +1064,9 @@ public class SavingUtils
 	 */
 	public void putLong(String name, long val)
 	{
-		prefs.edit().putLong(name, val).commit();
+		Transaction transaction = openWrite();
+		transaction.putLong(name, val);
+		closeWrite(transaction);
 	}
 
 	/**
@@ -455,7 +1077,9 @@ public class SavingUtils
 	 */
 	public void putBoolean(String name, boolean val)
 	{
-		prefs.edit().putBoolean(name, val).commit();
+		Transaction transaction = openWrite();
+		transaction.putBoolean(name, val);
+		closeWrite(transaction);
 	}
 
 	/**
@@ -466,7 +1090,9 @@ public class SavingUtils
 	 */
 	public void putString(String name, String val)
 	{
-		prefs.edit().putString(name, val).commit();
+		Transaction transaction = openWrite();
+		transaction.putString(name, val);
+		closeWrite(transaction);
 	}
 	
 	/**
@@ -477,12 +1103,9 @@ public class SavingUtils
 	 */
 	public void putIntArray(String name, int[] array)
 	{
-		StringBuilder builder = new StringBuilder();
-		
-		for(int i = 0; i < array.length; i++)
-			builder.append(array[i]).append("|");
-		
-		prefs.edit().putString(name, builder.toString().substring(0, builder.length() - 1)).commit();
+		Transaction transaction = openWrite();
+		transaction.putIntArray(name, array);
+		closeWrite(transaction);
 	}
 	
 	/**
@@ -493,12 +1116,9 @@ public class SavingUtils
 	 */
 	public void putFloatArray(String name, float[] array)
 	{
-		StringBuilder builder = new StringBuilder();
-		
-		for(int i = 0; i < array.length; i++)
-			builder.append(array[i]).append("|");
-		
-		prefs.edit().putString(name, builder.toString().substring(0, builder.length() - 1)).commit();
+		Transaction transaction = openWrite();
+		transaction.putFloatArray(name, array);
+		closeWrite(transaction);
 	}
 
 	/**
@@ -509,12 +1129,9 @@ public class SavingUtils
 	 */
 	public void putDoubleArray(String name, double[] array)
 	{
-		StringBuilder builder = new StringBuilder();
-		
-		for(int i = 0; i < array.length; i++)
-			builder.append(array[i]).append("|");
-		
-		prefs.edit().putString(name, builder.toString().substring(0, builder.length() - 1)).commit();
+		Transaction transaction = openWrite();
+		transaction.putDoubleArray(name, array);
+		closeWrite(transaction);
 	}
 
 	/**
@@ -525,12 +1142,9 @@ public class SavingUtils
 	 */
 	public void putBooleanArray(String name, boolean[] array)
 	{
-		StringBuilder builder = new StringBuilder();
-		
-		for(int i = 0; i < array.length; i++)
-			builder.append(array[i]).append("|");
-		
-		prefs.edit().putString(name, builder.toString().substring(0, builder.length() - 1)).commit();
+		Transaction transaction = openWrite();
+		transaction.putBooleanArray(name, array);
+		closeWrite(transaction);
 	}
 
 	/**
@@ -541,13 +1155,9 @@ public class SavingUtils
 	 */
 	public void putIntMatrix(String name, int[][] matrix)
 	{
-		StringBuilder builder = new StringBuilder();
-		
-		for(int i = 0; i < matrix.length; i++)
-			for(int j = 0; j < matrix[i].length; j++)
-				builder.append(matrix[i][j]).append("|");
-		
-		prefs.edit().putString(name+ "_MATRIX", builder.toString().substring(0, builder.length() - 1)).commit();
+		Transaction transaction = openWrite();
+		transaction.putIntMatrix(name, matrix);
+		closeWrite(transaction);
 	}
 	
 	/**
@@ -558,13 +1168,9 @@ public class SavingUtils
 	 */
 	public void putFloatMatrix(String name, float[][] matrix)
 	{
-		StringBuilder builder = new StringBuilder();
-		
-		for(int i = 0; i < matrix.length; i++)
-			for(int j = 0; j < matrix[i].length; j++)
-				builder.append(matrix[i][j]).append("|");
-		
-		prefs.edit().putString(name+ "_MATRIX", builder.toString().substring(0, builder.length() - 1)).commit();
+		Transaction transaction = openWrite();
+		transaction.putFloatMatrix(name, matrix);
+		closeWrite(transaction);
 	}
 
 	/**
@@ -575,13 +1181,9 @@ public class SavingUtils
 	 */
 	public void putDoubleMatrix(String name, double[][] matrix)
 	{
-		StringBuilder builder = new StringBuilder();
-		
-		for(int i = 0; i < matrix.length; i++)
-			for(int j = 0; j < matrix[i].length; j++)
-				builder.append(matrix[i][j]).append("|");
-		
-		prefs.edit().putString(name+ "_MATRIX", builder.toString().substring(0, builder.length() - 1)).commit();
+		Transaction transaction = openWrite();
+		transaction.putDoubleMatrix(name, matrix);
+		closeWrite(transaction);
 	}
 
 	/**
@@ -592,13 +1194,536 @@ public class SavingUtils
 	 */
 	public void putBooleanMatrix(String name, boolean[][] matrix)
 	{
-		StringBuilder builder = new StringBuilder();
+		Transaction transaction = openWrite();
+		transaction.putBooleanMatrix(name, matrix);
+		closeWrite(transaction);
+	}
+	
+	/**
+	 * Transaction for saving many values by one commit or apply
+	 * Values are encoded same as by put methods of SavingUtils
+	 * Transaction can be used again after commit or apply
+	 * 
+	 * @warning with ShardedPreferences backend values of different shards are written separately, so crash or failed write can save part of them
+	 * 
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public class Transaction
+	{
+		private final SharedPreferences.Editor editor;
 		
-		for(int i = 0; i < matrix.length; i++)
-			for(int j = 0; j < matrix[i].length; j++)
-				builder.append(matrix[i][j]).append("|");
+		/**
+		 * keys changed keys, invalidated in cache after commit or apply
+		 * cleared true if all values were removed
+		 */
+		private final ArrayList<String> keys = new ArrayList<String>();
+		private boolean cleared;
 		
-		prefs.edit().putString(name+ "_MATRIX", builder.toString().substring(0, builder.length() - 1)).commit();
+		private Transaction(SharedPreferences.Editor editor)
+		{
+			this.editor = editor;
+		}
+		
+		/**
+		 * Remembers changed key for invalidating it in cache
+		 * 
+		 * @param key changed key
+		 * @return editor of this transaction
+		 */
+		private SharedPreferences.Editor edit(String key)
+		{
+			if(cache != null)
+			{
+				synchronized(keys)
+				{
+					keys.add(key);
+				}
+			}
+			
+			return editor;
+		}
+		
+		/**
+		 * Returns editor for putting raw values, e.g. from snapshot
+		 * Whole cache is invalidated after commit or apply
+		 * 
+		 * @return editor of this transaction
+		 */
+		private SharedPreferences.Editor rawEditor()
+		{
+			synchronized(keys)
+			{
+				cleared = true;
+			}
+			
+			return editor;
+		}
+		
+		/**
+		 * Puts encoded array or matrix, compresses it if needed
+		 * 
+		 * @param key    key of value in preferences
+		 * @param type   type of value for metrics
+		 * @param packed value, encoded by PackedCodec
+		 * @param start  start time of encoding, returned by timestamp
+		 * @return this transaction
+		 */
+		private Transaction putEncoded(String key, SavingMetrics.ValueType type, String packed, long start)
+		{
+			String value = encodeString(packed);
+			edit(key).putString(key, value);
+			
+			SavingMetrics metrics = SavingUtils.this.metrics;
+			if(metrics != null)
+			{
+				if(start != 0)
+					metrics.encoded(System.nanoTime() - start);
+				metrics.write(type, key, value.length());
+			}
+			
+			return this;
+		}
+		
+		private void recordWrite(SavingMetrics.ValueType type, String name, int encodedLength)
+		{
+			SavingMetrics metrics = SavingUtils.this.metrics;
+			if(metrics != null)
+				metrics.write(type, name, encodedLength);
+		}
+		
+		private void recordCommit(long start, boolean synchronous)
+		{
+			SavingMetrics metrics = SavingUtils.this.metrics;
+			if(metrics != null && start != 0)
+				metrics.committed(System.nanoTime() - start, synchronous);
+		}
+		
+		/**
+		 * Invalidates changed keys in cache
+		 */
+		private void invalidate()
+		{
+			PreferencesCache cache = SavingUtils.this.cache;
+			
+			synchronized(keys)
+			{
+				if(cache != null)
+				{
+					if(cleared)
+						cache.invalidateAll();
+					else
+						for(String key : keys)
+							cache.invalidate(key);
+				}
+				
+				keys.clear();
+				cleared = false;
+			}
+		}
+		
+		/**
+		 * Puts value into transaction
+		 * 
+		 * @param name name of value
+		 * @param val  value
+		 * @return this transaction
+		 */
+		public Transaction putInt(String name, int val)
+		{
+			edit(name).putInt(name, val);
+			recordWrite(SavingMetrics.ValueType.INT, name, 0);
+			return this;
+		}
+		
+		/**
+		 * Puts value into transaction
+		 * 
+		 * @param name name of value
+		 * @param val  value
+		 * @return this transaction
+		 */
+		public Transaction putFloat(String name, float val)
+		{
+			edit(name).putFloat(name, val);
+			recordWrite(SavingMetrics.ValueType.FLOAT, name, 0);
+			return this;
+		}
+		
+		/**
+		 * Puts value into transaction
+		 * 
+		 * @param name name of value
+		 * @param val  value
+		 * @return this transaction
+		 */
+		public Transaction putDouble(String name, double val)
+		{
+			edit(name).putFloat(name, (float)val);
+			recordWrite(SavingMetrics.ValueType.DOUBLE, name, 0);
+			return this;
+		}
+		
+		/**
+		 * Puts value into transaction
+		 * 
+		 * @param name name of value
+		 * @param val  value
+		 * @return this transaction
+		 */
+		public Transaction putLong(String name, long val)
+		{
+			edit(name).putLong(name, val);
+			recordWrite(SavingMetrics.ValueType.LONG, name, 0);
+			return this;
+		}
+		
+		/**
+		 * Puts value into transaction
+		 * 
+		 * @param name name of value
+		 * @param val  value
+		 * @return this transaction
+		 */
+		public Transaction putBoolean(String name, boolean val)
+		{
+			edit(name).putBoolean(name, val);
+			recordWrite(SavingMetrics.ValueType.BOOLEAN, name, 0);
+			return this;
+		}
+		
+		/**
+		 * Puts value into transaction
+		 * 
+		 * @param name name of value
+		 * @param val  value
+		 * @return this transaction
+		 */
+		public Transaction putString(String name, String val)
+		{
+			String value = encodeString(val);
+			edit(name).putString(name, value);
+			recordWrite(SavingMetrics.ValueType.STRING, name, value != null ? value.length() : 0);
+			return this;
+		}
+		
+		/**
+		 * Puts array into transaction
+		 * 
+		 * @param name  name of array
+		 * @param array array
+		 * @return this transaction
+		 */
+		public Transaction putIntArray(String name, int[] array)
+		{
+			long start = timestamp();
+			return putEncoded(name, SavingMetrics.ValueType.ARRAY, PackedCodec.encode(array), start);
+		}
+		
+		/**
+		 * Puts array into transaction
+		 * 
+		 * @param name  name of array
+		 * @param array array
+		 * @return this transaction
+		 */
+		public Transaction putFloatArray(String name, float[] array)
+		{
+			long start = timestamp();
+			return putEncoded(name, SavingMetrics.ValueType.ARRAY, PackedCodec.encode(array), start);
+		}
+		
+		/**
+		 * Puts array into transaction
+		 * 
+		 * @param name  name of array
+		 * @param array array
+		 * @return this transaction
+		 */
+		public Transaction putDoubleArray(String name, double[] array)
+		{
+			long start = timestamp();
+			return putEncoded(name, SavingMetrics.ValueType.ARRAY, PackedCodec.encode(array), start);
+		}
+		
+		/**
+		 * Puts array into transaction
+		 * 
+		 * @param name  name of array
+		 * @param array array
+		 * @return this transaction
+		 */
+		public Transaction putBooleanArray(String name, boolean[] array)
+		{
+			long start = timestamp();
+			return putEncoded(name, SavingMetrics.ValueType.ARRAY, PackedCodec.encode(array), start);
+		}
+		
+		/**
+		 * Puts matrix into transaction
+		 * 
+		 * @param name   name of matrix
+		 * @param matrix matrix
+		 * @return this transaction
+		 */
+		public Transaction putIntMatrix(String name, int[][] matrix)
+		{
+			long start = timestamp();
+			return putEncoded(name + "_MATRIX", SavingMetrics.ValueType.MATRIX, PackedCodec.encode(matrix), start);
+		}
+		
+		/**
+		 * Puts matrix into transaction
+		 * 
+		 * @param name   name of matrix
+		 * @param matrix matrix
+		 * @return this transaction
+		 */
+		public Transaction putFloatMatrix(String name, float[][] matrix)
+		{
+			long start = timestamp();
+			return putEncoded(name + "_MATRIX", SavingMetrics.ValueType.MATRIX, PackedCodec.encode(matrix), start);
+		}
+		
+		/**
+		 * Puts matrix into transaction
+		 * 
+		 * @param name   name of matrix
+		 * @param matrix matrix
+		 * @return this transaction
+		 */
+		public Transaction putDoubleMatrix(String name, double[][] matrix)
+		{
+			long start = timestamp();
+			return putEncoded(name + "_MATRIX", SavingMetrics.ValueType.MATRIX, PackedCodec.encode(matrix), start);
+		}
+		
+		/**
+		 * Puts matrix into transaction
+		 * 
+		 * @param name   name of matrix
+		 * @param matrix matrix
+		 * @return this transaction
+		 */
+		public Transaction putBooleanMatrix(String name, boolean[][] matrix)
+		{
+			long start = timestamp();
+			return putEncoded(name + "_MATRIX", SavingMetrics.ValueType.MATRIX, PackedCodec.encode(matrix), start);
+		}
+		
+		/**
+		 * Removes value
+		 * 
+		 * @param name name of value
+		 * @return this transaction
+		 */
+		public Transaction remove(String name)
+		{
+			edit(name).remove(name);
+			return this;
+		}
+		
+		/**
+		 * Removes all values from preferences, even not put by this transaction
+		 * 
+		 * @return this transaction
+		 */
+		public Transaction clear()
+		{
+			editor.clear();
+			synchronized(keys)
+			{
+				cleared = true;
+			}
+			return this;
+		}
+		
+		/**
+		 * Synchronously saves all values, put into this transaction, by one disk write
+		 * 
+		 * @return true if values were successfully written
+		 */
+		public boolean commit()
+		{
+			long start = timestamp();
+			boolean result = editor.commit();
+			invalidate();
+			recordCommit(start, true);
+			return result;
+		}
+		
+		/**
+		 * Saves all values, put into this transaction, into memory at once and writes them on disk asynchronously
+		 */
+		public void apply()
+		{
+			long start = timestamp();
+			editor.apply();
+			invalidate();
+			recordCommit(start, false);
+		}
+	}
+	
+	/**
+	 * Handle of stores, loaded on background thread
+	 * 
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static class Preload
+	{
+		/**
+		 * Listener, called on main thread when all stores are loaded
+		 */
+		public static interface OnReadyListener
+		{
+			public void onReady(Preload preload);
+		}
+		
+		private final Context ctx;
+		private final String[] names;
+		private final SavingUtils[] objects;
+		private final CountDownLatch loading = new CountDownLatch(1);
+		private final Handler mainHandler = new Handler(Looper.getMainLooper());
+		private OnReadyListener listener;
+		
+		private Preload(Context ctx, String[] names)
+		{
+			this.ctx = applicationContext(ctx);
+			this.names = new String[names.length];
+			this.objects = new SavingUtils[names.length];
+			
+			for(int i = 0; i < names.length; i++)
+			{
+				this.names[i] = storeName(ctx, names[i]);
+				objects[i] = new SavingUtils(ctx, loading, this.names[i]);
+				objects[i].register(this.names[i]);
+			}
+		}
+		
+		/**
+		 * Loads stores in USER_INITIATED lane of ThreadUtils
+		 * Store, which failed to load, is left empty and is loaded again on first access, which throws its exception
+		 */
+		private void start()
+		{
+			try
+			{
+				ThreadUtils.getExecutor(ThreadUtils.Lane.USER_INITIATED).execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							for(int i = 0; i < names.length; i++)
+								load(i);
+						}
+						finally
+						{
+							loading.countDown();
+						}
+						
+						notifyReady();
+					}
+				});
+			}
+			catch(RejectedExecutionException e)
+			{
+				/*
+				 * Lane is full, stores will be loaded on first access
+				 */
+				loading.countDown();
+			}
+		}
+		
+		private void load(int index)
+		{
+			try
+			{
+				SharedPreferences prefs = ctx.getSharedPreferences(names[index], 0);
+				
+				/*
+				 * SharedPreferences are parsed asynchronously, any read waits for the end of parsing
+				 */
+				prefs.contains(names[index]);
+				objects[index].prefs = prefs;
+			}
+			catch(RuntimeException e)
+			{
+				Log.w("SavingUtils", "Store " + names[index] + " was not preloaded", e);
+			}
+		}
+		
+		/**
+		 * Returns true if all stores are loaded
+		 * 
+		 * @return true if stores are loaded and can be read without blocking
+		 */
+		public boolean isReady()
+		{
+			return loading.getCount() == 0;
+		}
+		
+		/**
+		 * Waits for loading of all stores
+		 * 
+		 * @param timeout maximum time for waiting
+		 * @param unit    unit of timeout
+		 * @throws InterruptedException if current thread was interrupted while waiting
+		 * @return true if stores are loaded, false if timeout elapsed before
+		 */
+		public boolean await(long timeout, TimeUnit unit) throws InterruptedException
+		{
+			return loading.await(timeout, unit);
+		}
+		
+		/**
+		 * Sets listener, which will be called on main thread when all stores are loaded
+		 * If stores are already loaded, listener is called as soon as possible
+		 * 
+		 * @param listener listener for notifying
+		 */
+		public synchronized void setOnReadyListener(OnReadyListener listener)
+		{
+			this.listener = listener;
+			notifyReady();
+		}
+		
+		/**
+		 * Returns object, created for store
+		 * 
+		 * @param name name of store, as it was given to preload
+		 * @return SavingUtils for this store or null if this store was not preloaded
+		 */
+		public SavingUtils get(String name)
+		{
+			name = storeName(ctx, name);
+			for(int i = 0; i < names.length; i++)
+				if(names[i].equals(name))
+					return objects[i];
+			
+			return null;
+		}
+		
+		/**
+		 * Posts listener on main thread if stores are loaded. Every listener is called only once
+		 */
+		private synchronized void notifyReady()
+		{
+			if(listener == null || !isReady())
+				return;
+			
+			final OnReadyListener listener = this.listener;
+			this.listener = null;
+			
+			mainHandler.post(new Runnable()
+			{
+				public void run()
+				{
+					listener.onReady(Preload.this);
+				}
+			});
+		}
 	}
 	
 	/**
@@ -618,14 +1743,61 @@ public class SavingUtils
 	 * Static method for create new object or load cached
 	 * 
 	 * @param ctx Context, on which object will be or was created
-	 * @return instance of SavingUtils
+	 * @return instance of SavingUtils for store with default name - name of Context's package
 	 */
 	public static SavingUtils forContext(Context ctx)
 	{
-		for(SavingUtils utils : objects)
-			if(utils.isBasedOn(ctx))
-				return utils;
-				
-		return new SavingUtils(ctx);
+		return forContext(ctx, null);
+	}
+	
+	/**
+	 * Static method for create new object or load cached
+	 * Objects are shared by all contexts of one application
+	 * 
+	 * @param ctx  Context, on which object will be or was created
+	 * @param name name of store, name of Context's package if null or empty
+	 * @return instance of SavingUtils
+	 */
+	public static SavingUtils forContext(Context ctx, String name)
+	{
+		Key key = new Key(applicationContext(ctx), storeName(ctx, name));
+		
+		SavingUtils utils = objects.get(key);
+		if(utils != null)
+			return utils;
+		
+		new SavingUtils(ctx, name);
+		return objects.get(key);
+	}
+	
+	/**
+	 * Key of cached object: application context and store name
+	 */
+	private static final class Key
+	{
+		private final Context appContext;
+		private final String name;
+		
+		public Key(Context appContext, String name)
+		{
+			this.appContext = appContext;
+			this.name = name;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Key))
+				return false;
+			
+			Key key = (Key)o;
+			return appContext == key.appContext && name.equals(key.name);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(appContext) * 31 + name.hashCode();
+		}
 	}
 }
@@ -0,0 +1,354 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * SharedPreferences, split by hash of key into N separate files (shards)
+ * Can be used as storage backend of SavingUtils for stores with thousands of keys
+ *
+ * Commit rewrites only shards, which contain changed keys, so per-save I/O is about N times smaller
+ * Shards are loaded in parallel on all cores
+ *
+ * @warning count of shards must not be changed for existing store, otherwise saved values will not be found
+ * @warning commit and apply are atomic within one shard only: changed shards are written one by one, so crash or failed write can save part of changes
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class ShardedPreferences implements SharedPreferences
+{
+	/**
+	 * Executor, which loads shards of all stores
+	 */
+	private static final ExecutorService loader = Executors.newFixedThreadPool(HardwareUtils.getCoresCount(), new ThreadFactory()
+	{
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "ShardedPreferences-loader-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Future<SharedPreferences>[] shards;
+	private final WeakHashMap<OnSharedPreferenceChangeListener, ShardListener> listeners = new WeakHashMap<OnSharedPreferenceChangeListener, ShardListener>();
+
+	/**
+	 * Constructor
+	 * Starts loading of all shards in parallel, getters wait only for shard, which contains requested key
+	 *
+	 * @param ctx    Context for getting Shared Preferences
+	 * @param name   name of store, shards are named <name>_shard<index>
+	 * @param count  count of shards
+	 */
+	@SuppressWarnings("unchecked")
+	public ShardedPreferences(final Context ctx, String name, int count)
+	{
+		if(count <= 0)
+			throw new IllegalArgumentException("Count of shards must be positive: " + count);
+
+		shards = new Future[count];
+		for(int i = 0; i < count; i++)
+		{
+			final String shardName = name + "_shard" + i;
+			shards[i] = loader.submit(new Callable<SharedPreferences>()
+			{
+				public SharedPreferences call()
+				{
+					SharedPreferences prefs = ctx.getSharedPreferences(shardName, 0);
+
+					/*
+					 * SharedPreferences are parsed asynchronously, any read waits for the end of parsing
+					 */
+					prefs.contains(shardName);
+					return prefs;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return count of shards
+	 */
+	public int getShardsCount()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Returns index of shard, which contains key
+	 *
+	 * @param key key of value
+	 * @return index of shard
+	 */
+	private int indexOf(String key)
+	{
+		int h = key.hashCode();
+		return ((h ^ (h >>> 16)) & 0x7FFFFFFF) % shards.length;
+	}
+
+	/**
+	 * Returns shard, waits for it if it is not loaded yet
+	 * Used by PreferencesSnapshot for exporting store shard by shard
+	 *
+	 * @param index index of shard
+	 * @return loaded shard
+	 */
+	SharedPreferences shard(int index)
+	{
+		boolean interrupted = false;
+
+		try
+		{
+			while(true)
+			{
+				try
+				{
+					return shards[index].get();
+				}
+				catch(InterruptedException e)
+				{
+					interrupted = true;
+				}
+				catch(ExecutionException e)
+				{
+					throw new IllegalStateException("Shard " + index + " can not be loaded", e.getCause());
+				}
+			}
+		}
+		finally
+		{
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private SharedPreferences shard(String key)
+	{
+		return shard(indexOf(key));
+	}
+
+	public Map<String, ?> getAll()
+	{
+		Map<String, Object> all = new HashMap<String, Object>();
+		for(int i = 0; i < shards.length; i++)
+			all.putAll(shard(i).getAll());
+
+		return all;
+	}
+
+	public String getString(String key, String defValue)
+	{
+		return shard(key).getString(key, defValue);
+	}
+
+	public Set<String> getStringSet(String key, Set<String> defValues)
+	{
+		return shard(key).getStringSet(key, defValues);
+	}
+
+	public int getInt(String key, int defValue)
+	{
+		return shard(key).getInt(key, defValue);
+	}
+
+	public long getLong(String key, long defValue)
+	{
+		return shard(key).getLong(key, defValue);
+	}
+
+	public float getFloat(String key, float defValue)
+	{
+		return shard(key).getFloat(key, defValue);
+	}
+
+	public boolean getBoolean(String key, boolean defValue)
+	{
+		return shard(key).getBoolean(key, defValue);
+	}
+
+	public boolean contains(String key)
+	{
+		return shard(key).contains(key);
+	}
+
+	public Editor edit()
+	{
+		return new ShardedEditor();
+	}
+
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener)
+	{
+		ShardListener shardListener;
+		synchronized(listeners)
+		{
+			if(listeners.containsKey(listener))
+				return;
+
+			shardListener = new ShardListener(listener);
+			listeners.put(listener, shardListener);
+		}
+
+		for(int i = 0; i < shards.length; i++)
+			shard(i).registerOnSharedPreferenceChangeListener(shardListener);
+	}
+
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener)
+	{
+		ShardListener shardListener;
+		synchronized(listeners)
+		{
+			shardListener = listeners.remove(listener);
+		}
+
+		if(shardListener != null)
+			for(int i = 0; i < shards.length; i++)
+				shard(i).unregisterOnSharedPreferenceChangeListener(shardListener);
+	}
+
+	/**
+	 * Listener of one shard, which notifies user's listener on behalf of whole store
+	 * Shards hold listeners weakly, so it is held by listeners map while user's listener is alive
+	 * User's listener is held weakly too, otherwise value of map would keep its key alive and entry would never be collected
+	 */
+	private class ShardListener implements OnSharedPreferenceChangeListener
+	{
+		private final WeakReference<OnSharedPreferenceChangeListener> listener;
+
+		public ShardListener(OnSharedPreferenceChangeListener listener)
+		{
+			this.listener = new WeakReference<OnSharedPreferenceChangeListener>(listener);
+		}
+
+		public void onSharedPreferenceChanged(SharedPreferences prefs, String key)
+		{
+			OnSharedPreferenceChangeListener listener = this.listener.get();
+			if(listener != null)
+				listener.onSharedPreferenceChanged(ShardedPreferences.this, key);
+		}
+	}
+
+	/**
+	 * Editor, which routes changes into editors of shards
+	 * Only shards with changes are written by commit or apply
+	 * Editor can be used again after commit or apply
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	private class ShardedEditor implements Editor
+	{
+		private final Editor[] editors = new Editor[shards.length];
+		private final boolean[] changed = new boolean[shards.length];
+
+		/**
+		 * Returns editor of shard, which contains key, and marks it as changed
+		 */
+		private Editor editor(String key)
+		{
+			return editor(indexOf(key));
+		}
+
+		private Editor editor(int index)
+		{
+			if(editors[index] == null)
+				editors[index] = shard(index).edit();
+
+			changed[index] = true;
+			return editors[index];
+		}
+
+		public synchronized Editor putString(String key, String value)
+		{
+			editor(key).putString(key, value);
+			return this;
+		}
+
+		public synchronized Editor putStringSet(String key, Set<String> values)
+		{
+			editor(key).putStringSet(key, values);
+			return this;
+		}
+
+		public synchronized Editor putInt(String key, int value)
+		{
+			editor(key).putInt(key, value);
+			return this;
+		}
+
+		public synchronized Editor putLong(String key, long value)
+		{
+			editor(key).putLong(key, value);
+			return this;
+		}
+
+		public synchronized Editor putFloat(String key, float value)
+		{
+			editor(key).putFloat(key, value);
+			return this;
+		}
+
+		public synchronized Editor putBoolean(String key, boolean value)
+		{
+			editor(key).putBoolean(key, value);
+			return this;
+		}
+
+		public synchronized Editor remove(String key)
+		{
+			editor(key).remove(key);
+			return this;
+		}
+
+		public synchronized Editor clear()
+		{
+			for(int i = 0; i < editors.length; i++)
+				editor(i).clear();
+
+			return this;
+		}
+
+		public synchronized boolean commit()
+		{
+			boolean result = true;
+			for(int i = 0; i < editors.length; i++)
+			{
+				if(!changed[i])
+					continue;
+
+				changed[i] = false;
+				result &= editors[i].commit();
+			}
+
+			return result;
+		}
+
+		public synchronized void apply()
+		{
+			for(int i = 0; i < editors.length; i++)
+			{
+				if(!changed[i])
+					continue;
+
+				changed[i] = false;
+				editors[i].apply();
+			}
+		}
+	}
+}
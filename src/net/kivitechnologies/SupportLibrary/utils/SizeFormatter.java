@@ -0,0 +1,203 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.io.File;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Formatter of file sizes as <SIZE>B, <SIZE>KB, <SIZE>MB, <SIZE>GB or <SIZE>TB, e.g. 100B, 1.95KB or 3MB
+ * Size is shown in unit, in which it is less than 512, fraction is rounded to hundredths and is omitted if it is zero
+ *
+ * Unlike String.format it does not allocate anything: thresholds of units are precomputed,
+ * fraction is calculated in fixed point with shifts, and text is written into StringBuilder or char[] of caller,
+ * so long lists can reuse one buffer for all rows
+ *
+ * Instances are immutable and can be shared by threads
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class SizeFormatter
+{
+	/**
+	 * Max count of chars, written for one size
+	 */
+	public static final int MAX_LENGTH = 16;
+
+	private static final char[][] UNITS = { { 'B' }, { 'K', 'B' }, { 'M', 'B' }, { 'G', 'B' }, { 'T', 'B' } };
+
+	/**
+	 * Sizes, starting from which next unit is used, unit i covers sizes up to LIMITS[i]
+	 * Limits are lowered by half of hundredth, so sizes are never rounded up to 512.00 of unit
+	 */
+	private static final long[] LIMITS = new long[UNITS.length - 1];
+
+	static
+	{
+		for(int i = 0; i < LIMITS.length; i++)
+			LIMITS[i] = (512L << (10 * i)) - (1L << (10 * i)) / 200;
+	}
+
+	private static SizeFormatter defaultFormatter;
+
+	private final char decimalSeparator;
+
+	/**
+	 * Returns formatter with decimal separator of default locale
+	 *
+	 * @return shared formatter
+	 */
+	public static synchronized SizeFormatter getDefault()
+	{
+		if(defaultFormatter == null)
+			defaultFormatter = new SizeFormatter(DecimalFormatSymbols.getInstance().getDecimalSeparator());
+
+		return defaultFormatter;
+	}
+
+	/**
+	 * Creates formatter
+	 *
+	 * @param decimalSeparator separator of fraction, e.g. '.' or ','
+	 */
+	public SizeFormatter(char decimalSeparator)
+	{
+		this.decimalSeparator = decimalSeparator;
+	}
+
+	/**
+	 * Appends formatted size to builder
+	 *
+	 * @param bytes size in bytes
+	 * @param out   builder, capacity of which should be enough for MAX_LENGTH chars
+	 * @return out
+	 */
+	public StringBuilder format(long bytes, StringBuilder out)
+	{
+		int unit = unitOf(bytes);
+		int shift = 10 * unit;
+		long integer = bytes >> shift, fraction = roundFraction(bytes, shift);
+
+		if(fraction == 100)
+		{
+			integer++;
+			fraction = 0;
+		}
+
+		out.append(integer);
+		if(fraction != 0)
+		{
+			out.append(decimalSeparator);
+			out.append((char)('0' + fraction / 10));
+			out.append((char)('0' + fraction % 10));
+		}
+
+		return out.append(UNITS[unit]);
+	}
+
+	/**
+	 * Writes formatted size into buffer
+	 *
+	 * @param bytes  size in bytes
+	 * @param buffer buffer, it must have at least MAX_LENGTH chars after offset
+	 * @param offset position of first char
+	 * @return count of written chars
+	 */
+	public int format(long bytes, char[] buffer, int offset)
+	{
+		int unit = unitOf(bytes);
+		int shift = 10 * unit;
+		long integer = bytes >> shift, fraction = roundFraction(bytes, shift);
+
+		if(fraction == 100)
+		{
+			integer++;
+			fraction = 0;
+		}
+
+		int position = offset;
+		if(integer < 0)
+		{
+			buffer[position++] = '-';
+			integer = -integer;
+		}
+
+		/*
+		 * Digits are written backwards after counting of them
+		 */
+		int digits = 1;
+		for(long rest = integer / 10; rest > 0; rest /= 10)
+			digits++;
+
+		for(int i = position + digits - 1; i >= position; i--)
+		{
+			buffer[i] = (char)('0' + integer % 10);
+			integer /= 10;
+		}
+		position += digits;
+
+		if(fraction != 0)
+		{
+			buffer[position++] = decimalSeparator;
+			buffer[position++] = (char)('0' + fraction / 10);
+			buffer[position++] = (char)('0' + fraction % 10);
+		}
+
+		for(char c : UNITS[unit])
+			buffer[position++] = c;
+
+		return position - offset;
+	}
+
+	/**
+	 * Formats sizes of files in one pass, all sizes are written one after another into buffer
+	 * Size of file i takes chars from ends[i - 1] (or 0 for first file) to ends[i], e.g. for TextView.setText(char[], int, int)
+	 * Sizes of directories are written as empty strings
+	 *
+	 * @param files  files
+	 * @param buffer buffer, it must have at least files.length * MAX_LENGTH chars
+	 * @param ends   array for end positions of sizes, it must have at least files.length elements
+	 * @return count of written chars
+	 */
+	public int format(File[] files, char[] buffer, int[] ends)
+	{
+		if(buffer.length < files.length * MAX_LENGTH)
+			throw new IllegalArgumentException("Buffer is too small: " + buffer.length + " of " + files.length * MAX_LENGTH + " chars");
+		if(ends.length < files.length)
+			throw new IllegalArgumentException("Array of ends is too small: " + ends.length + " of " + files.length);
+
+		int position = 0;
+		for(int i = 0; i < files.length; i++)
+		{
+			if(!files[i].isDirectory())
+				position += format(files[i].length(), buffer, position);
+
+			ends[i] = position;
+		}
+
+		return position;
+	}
+
+	/**
+	 * Returns index of unit, in which size is less than 512
+	 */
+	private static int unitOf(long bytes)
+	{
+		int unit = 0;
+		while(unit < LIMITS.length && bytes >= LIMITS[unit])
+			unit++;
+
+		return unit;
+	}
+
+	/**
+	 * Returns fraction of size in unit, rounded half up to hundredths, it can be 100, if size is rounded to next integer
+	 */
+	private static long roundFraction(long bytes, int shift)
+	{
+		if(shift == 0 || bytes < 0)
+			return 0;
+
+		long remainder = bytes & ((1L << shift) - 1);
+		return (remainder * 100 + (1L << (shift - 1))) >> shift;
+	}
+}
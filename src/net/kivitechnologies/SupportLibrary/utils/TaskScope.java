@@ -0,0 +1,331 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Scope of background tasks, bound to lifecycle of owner, e.g. Activity
+ * Tasks are submitted into ThreadUtils lanes, owner pauses, resumes or cancels all of them at once
+ *
+ * Cancellation and pausing are cooperative: every task gets CancellationToken and must check it, e.g. at every file or every row of bitmap
+ * Callbacks of cancelled tasks are not called, so results, which nobody will see, are not delivered
+ *
+ * Paused task does not hold thread of lane, which is shared by whole application: checkpoint throws PausedException,
+ * task leaves its thread and scope submits it again on resume, so call of task is started from the beginning
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class TaskScope
+{
+	/**
+	 * Queued, running and paused tasks of scope, guarded by this object
+	 */
+	private final HashSet<ScopedRun<?>> runs = new HashSet<ScopedRun<?>>();
+
+	/**
+	 * Tasks, which left their threads because of pausing, they are submitted again by resume, guarded by this object
+	 */
+	private final ArrayList<ScopedRun<?>> parked = new ArrayList<ScopedRun<?>>();
+
+	/**
+	 * Token of tasks, submitted since last cancellation, guarded by this object
+	 */
+	private CancellationToken token = new CancellationToken();
+	private boolean paused;
+
+	/**
+	 * Task, which receives token of scope
+	 */
+	public static interface ScopedTask<T>
+	{
+		/**
+		 * Main code of task, runs on background thread
+		 * If scope is paused, call is interrupted by PausedException at checkpoint and is called again after resuming,
+		 * so task must be able to start again, e.g. skip files, which it processed already
+		 *
+		 * @param token token, which must be checked by task
+		 * @throws Exception any exception, it is passed into TaskCallback.onError
+		 * @return result of task
+		 */
+		public T call(CancellationToken token) throws Exception;
+	}
+
+	/**
+	 * Submits task into USER_INITIATED lane
+	 *
+	 * @param task     task for executing
+	 * @param callback callback or null
+	 * @return future of task
+	 */
+	public <T> ThreadUtils.TaskFuture<T> submit(ScopedTask<T> task, ThreadUtils.TaskCallback<T> callback)
+	{
+		return submit(ThreadUtils.Lane.USER_INITIATED, task, callback);
+	}
+
+	/**
+	 * Submits task into lane
+	 * If scope is paused, task is not started until scope is resumed
+	 *
+	 * @param lane     priority lane
+	 * @param task     task for executing
+	 * @param callback callback or null
+	 * @return future of task
+	 */
+	public <T> ThreadUtils.TaskFuture<T> submit(ThreadUtils.Lane lane, ScopedTask<T> task, ThreadUtils.TaskCallback<T> callback)
+	{
+		ScopedRun<T> run;
+		synchronized(this)
+		{
+			run = new ScopedRun<T>(lane, task, callback, token);
+			runs.add(run);
+
+			if(paused)
+			{
+				parked.add(run);
+				return run.future;
+			}
+		}
+
+		run.start();
+		return run.future;
+	}
+
+	/**
+	 * Pauses tasks: they leave their threads at next checkpoint of token and wait for resume in scope
+	 */
+	public synchronized void pause()
+	{
+		paused = true;
+		token.paused = true;
+	}
+
+	/**
+	 * Resumes paused tasks, they are submitted into their lanes again
+	 */
+	public void resume()
+	{
+		ScopedRun<?>[] resumed;
+		synchronized(this)
+		{
+			paused = false;
+			token.paused = false;
+
+			resumed = parked.toArray(new ScopedRun<?>[parked.size()]);
+			parked.clear();
+		}
+
+		for(ScopedRun<?> run : resumed)
+			run.start();
+	}
+
+	/**
+	 * Cancels all tasks of scope: queued and paused ones are not started, running ones stop at next checkpoint
+	 * Tasks, submitted after this call, get new token and are not cancelled
+	 */
+	public void cancelAll()
+	{
+		ScopedRun<?>[] cancelled;
+		synchronized(this)
+		{
+			token.cancelled = true;
+			token = new CancellationToken();
+			token.paused = paused;
+
+			cancelled = runs.toArray(new ScopedRun<?>[runs.size()]);
+			runs.clear();
+			parked.clear();
+		}
+
+		for(ScopedRun<?> run : cancelled)
+			run.cancel();
+	}
+
+	/**
+	 * @return count of queued, running and paused tasks
+	 */
+	public synchronized int getTasksCount()
+	{
+		return runs.size();
+	}
+
+	/**
+	 * Called by task, which left its thread at checkpoint, resubmits it if scope was resumed meanwhile
+	 */
+	private void park(ScopedRun<?> run)
+	{
+		synchronized(this)
+		{
+			if(!runs.contains(run))
+				return;
+
+			if(paused)
+			{
+				parked.add(run);
+				return;
+			}
+		}
+
+		run.start();
+	}
+
+	private synchronized void finished(ScopedRun<?> run)
+	{
+		runs.remove(run);
+	}
+
+	/**
+	 * Task of scope, it is executed in parts, every part ends with result or with pausing
+	 * Future of task is not submitted itself, it is completed by last part
+	 */
+	private class ScopedRun<T> implements Callable<Void>
+	{
+		private final ThreadUtils.Lane lane;
+		private final ScopedTask<T> task;
+		private final CancellationToken token;
+		private final ThreadUtils.TaskFuture<T> future;
+		private volatile ThreadUtils.TaskFuture<Void> part;
+
+		private final Callable<T> code = new Callable<T>()
+		{
+			public T call() throws Exception
+			{
+				token.checkpoint();
+				return task.call(token);
+			}
+		};
+
+		public ScopedRun(ThreadUtils.Lane lane, ScopedTask<T> task, ThreadUtils.TaskCallback<T> callback, CancellationToken token)
+		{
+			this.lane = lane;
+			this.task = task;
+			this.token = token;
+			this.future = ThreadUtils.newPendingTask(lane, callback);
+		}
+
+		/**
+		 * Submits next part, task fails with RejectedExecutionException if lane is full
+		 */
+		public void start()
+		{
+			try
+			{
+				part = ThreadUtils.submit(lane, this, null, 0);
+			}
+			catch(RejectedExecutionException e)
+			{
+				future.fail(e);
+				finished(this);
+			}
+		}
+
+		public void cancel()
+		{
+			future.cancel(false);
+
+			ThreadUtils.TaskFuture<Void> part = this.part;
+			if(part != null)
+				part.cancel(false);
+		}
+
+		public Void call()
+		{
+			if(future.isDone())
+			{
+				finished(this);
+				return null;
+			}
+
+			try
+			{
+				future.complete(ThreadUtils.callAs(future, code));
+			}
+			catch(PausedException e)
+			{
+				park(this);
+				return null;
+			}
+			catch(CancellationException e)
+			{
+				future.cancel(false);
+			}
+			catch(Throwable e)
+			{
+				future.fail(e);
+			}
+
+			finished(this);
+			return null;
+		}
+	}
+
+	/**
+	 * Exception, which is thrown by checkpoint of paused task
+	 * Task must not catch it, or must throw it again, otherwise task is finished instead of pausing
+	 */
+	public static class PausedException extends RuntimeException
+	{
+		private static final long serialVersionUID = -2811434526873390914L;
+
+		public PausedException()
+		{
+			super("Task was paused");
+		}
+	}
+
+	/**
+	 * Token of cooperative cancellation and pausing
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static class CancellationToken
+	{
+		private volatile boolean cancelled, paused;
+
+		/**
+		 * @return true if task must stop
+		 */
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		/**
+		 * @return true if task must leave its thread
+		 */
+		public boolean isPaused()
+		{
+			return paused;
+		}
+
+		/**
+		 * Throws exception if task is cancelled
+		 *
+		 * @throws CancellationException if task is cancelled
+		 */
+		public void throwIfCancelled()
+		{
+			if(cancelled)
+				throw new CancellationException("Task was cancelled");
+		}
+
+		/**
+		 * Throws exception if task is cancelled or paused
+		 * Should be called by task at safe points, where it can stop
+		 *
+		 * @throws CancellationException if task is cancelled
+		 * @throws PausedException if scope is paused, task is called again after resuming
+		 */
+		public void checkpoint()
+		{
+			throwIfCancelled();
+
+			if(paused)
+				throw new PausedException();
+		}
+	}
+}
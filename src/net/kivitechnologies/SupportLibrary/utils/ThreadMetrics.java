@@ -0,0 +1,498 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of ThreadUtils lanes
+ * Counts submitted, completed, rejected and expired tasks, busy and idle time of every worker, depth of queues,
+ * histograms of waiting and running time of tasks and longest task with stack of thread, which submitted it
+ *
+ * Metrics are collected only if they are enabled by ThreadUtils.setMetricsEnabled
+ * Current values are returned by getSnapshot, they can be logged periodically by ThreadUtils.startMetricsLogging
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class ThreadMetrics
+{
+	/**
+	 * Count of buckets in histograms
+	 * Bucket i counts tasks, which took less than 2^i microseconds (and not less than 2^(i-1)), last bucket counts all longer tasks
+	 */
+	public static final int HISTOGRAM_BUCKETS = 24;
+
+	private final LaneMetrics[] lanes = new LaneMetrics[ThreadUtils.Lane.values().length];
+
+	ThreadMetrics()
+	{
+		for(int i = 0; i < lanes.length; i++)
+			lanes[i] = new LaneMetrics();
+	}
+
+	/**
+	 * Records submitting of task
+	 */
+	void submitted(ThreadUtils.Lane lane, int queueDepth)
+	{
+		LaneMetrics metrics = lanes[lane.ordinal()];
+		metrics.submitted.incrementAndGet();
+
+		long max;
+		while(queueDepth > (max = metrics.maxQueueDepth.get()))
+			if(metrics.maxQueueDepth.compareAndSet(max, queueDepth))
+				break;
+	}
+
+	void rejected(ThreadUtils.Lane lane)
+	{
+		lanes[lane.ordinal()].rejected.incrementAndGet();
+	}
+
+	void expired(ThreadUtils.Lane lane)
+	{
+		lanes[lane.ordinal()].expired.incrementAndGet();
+	}
+
+	/**
+	 * Records start of task on current thread
+	 *
+	 * @param waitNanos time, which task spent in queue, or -1 if it is unknown
+	 */
+	void started(ThreadUtils.Lane lane, long waitNanos)
+	{
+		LaneMetrics metrics = lanes[lane.ordinal()];
+		if(waitNanos >= 0)
+			record(metrics.waitHistogram, waitNanos);
+
+		metrics.worker().taskStart = System.nanoTime();
+	}
+
+	/**
+	 * Records end of task on current thread
+	 *
+	 * @param submitter stack of thread, which submitted task, or null if it is unknown
+	 */
+	void finished(ThreadUtils.Lane lane, Throwable submitter)
+	{
+		LaneMetrics metrics = lanes[lane.ordinal()];
+		WorkerMetrics worker = metrics.worker();
+
+		long start = worker.taskStart;
+		if(start == 0)
+			return;
+
+		long duration = System.nanoTime() - start;
+		worker.taskStart = 0;
+		worker.busyNanos.addAndGet(duration);
+		worker.tasks.incrementAndGet();
+
+		metrics.completed.incrementAndGet();
+		record(metrics.runHistogram, duration);
+
+		if(duration > metrics.longestNanos)
+		{
+			synchronized(metrics)
+			{
+				if(duration > metrics.longestNanos)
+				{
+					metrics.longestNanos = duration;
+					metrics.longestThread = Thread.currentThread().getName();
+					metrics.longestSubmitter = submitter != null ? submitter.getStackTrace() : null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records exit of worker of lane, called on exiting thread
+	 */
+	void workerExited(ThreadUtils.Lane lane)
+	{
+		lanes[lane.ordinal()].workers.remove(Thread.currentThread());
+	}
+
+	private static void record(AtomicLongArray histogram, long nanos)
+	{
+		long micros = nanos / 1000;
+		int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+		histogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+	}
+
+	/**
+	 * Returns current values of all metrics
+	 *
+	 * @return immutable snapshot of metrics
+	 */
+	public Snapshot getSnapshot()
+	{
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Resets counters and histograms, workers are kept
+	 */
+	public void reset()
+	{
+		for(LaneMetrics metrics : lanes)
+		{
+			metrics.submitted.set(0);
+			metrics.completed.set(0);
+			metrics.rejected.set(0);
+			metrics.expired.set(0);
+			metrics.maxQueueDepth.set(0);
+			for(int i = 0; i < HISTOGRAM_BUCKETS; i++)
+			{
+				metrics.waitHistogram.set(i, 0);
+				metrics.runHistogram.set(i, 0);
+			}
+
+			synchronized(metrics)
+			{
+				metrics.longestNanos = 0;
+				metrics.longestThread = null;
+				metrics.longestSubmitter = null;
+			}
+
+			for(WorkerMetrics worker : metrics.workers.values())
+			{
+				worker.since = System.nanoTime();
+				worker.busyNanos.set(0);
+				worker.tasks.set(0);
+			}
+		}
+	}
+
+	/**
+	 * Metrics of one lane
+	 */
+	private static class LaneMetrics
+	{
+		final AtomicLong submitted = new AtomicLong(), completed = new AtomicLong(), rejected = new AtomicLong(), expired = new AtomicLong();
+		final AtomicLong maxQueueDepth = new AtomicLong();
+		final AtomicLongArray waitHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS), runHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+		final ConcurrentHashMap<Thread, WorkerMetrics> workers = new ConcurrentHashMap<Thread, WorkerMetrics>();
+
+		/**
+		 * Longest task, guarded by this object, longestNanos is read without lock for fast check
+		 */
+		volatile long longestNanos;
+		String longestThread;
+		StackTraceElement[] longestSubmitter;
+
+		/**
+		 * Returns metrics of current thread, creates them at first call
+		 */
+		WorkerMetrics worker()
+		{
+			Thread thread = Thread.currentThread();
+			WorkerMetrics worker = workers.get(thread);
+			if(worker == null)
+			{
+				worker = new WorkerMetrics();
+				workers.put(thread, worker);
+			}
+
+			return worker;
+		}
+	}
+
+	/**
+	 * Metrics of one worker, changed by its thread only
+	 */
+	private static class WorkerMetrics
+	{
+		final AtomicLong busyNanos = new AtomicLong(), tasks = new AtomicLong();
+		volatile long since = System.nanoTime();
+		volatile long taskStart;
+	}
+
+	/**
+	 * Immutable snapshot of metrics
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static class Snapshot
+	{
+		private final LaneSnapshot[] lanes;
+
+		private Snapshot(ThreadMetrics metrics)
+		{
+			lanes = new LaneSnapshot[metrics.lanes.length];
+			for(ThreadUtils.Lane lane : ThreadUtils.Lane.values())
+				lanes[lane.ordinal()] = new LaneSnapshot(lane, metrics.lanes[lane.ordinal()]);
+		}
+
+		/**
+		 * @param lane priority lane
+		 * @return metrics of lane
+		 */
+		public LaneSnapshot getLane(ThreadUtils.Lane lane)
+		{
+			return lanes[lane.ordinal()];
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder builder = new StringBuilder("ThreadMetrics{");
+			for(int i = 0; i < lanes.length; i++)
+			{
+				if(i > 0)
+					builder.append(", ");
+				builder.append(lanes[i]);
+			}
+
+			return builder.append('}').toString();
+		}
+	}
+
+	/**
+	 * Snapshot of metrics of one lane
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static class LaneSnapshot
+	{
+		private final ThreadUtils.Lane lane;
+		private final long submitted, completed, rejected, expired, maxQueueDepth;
+		private final int queueDepth;
+		private final long[] waitHistogram, runHistogram;
+		private final long longestNanos;
+		private final String longestThread;
+		private final StackTraceElement[] longestSubmitter;
+		private final List<WorkerSnapshot> workers;
+
+		private LaneSnapshot(ThreadUtils.Lane lane, LaneMetrics metrics)
+		{
+			this.lane = lane;
+			submitted = metrics.submitted.get();
+			completed = metrics.completed.get();
+			rejected = metrics.rejected.get();
+			expired = metrics.expired.get();
+			maxQueueDepth = metrics.maxQueueDepth.get();
+			queueDepth = ThreadUtils.getQueueDepth(lane);
+			waitHistogram = toArray(metrics.waitHistogram);
+			runHistogram = toArray(metrics.runHistogram);
+
+			synchronized(metrics)
+			{
+				longestNanos = metrics.longestNanos;
+				longestThread = metrics.longestThread;
+				longestSubmitter = metrics.longestSubmitter;
+			}
+
+			long now = System.nanoTime();
+			ArrayList<WorkerSnapshot> workers = new ArrayList<WorkerSnapshot>();
+			for(Map.Entry<Thread, WorkerMetrics> entry : metrics.workers.entrySet())
+			{
+				WorkerMetrics worker = entry.getValue();
+				long start = worker.taskStart;
+				long busy = worker.busyNanos.get() + (start != 0 ? now - start : 0);
+				long total = now - worker.since;
+
+				workers.add(new WorkerSnapshot(entry.getKey().getName(), busy, Math.max(0, total - busy), worker.tasks.get()));
+			}
+			this.workers = Collections.unmodifiableList(workers);
+		}
+
+		private static long[] toArray(AtomicLongArray array)
+		{
+			long[] result = new long[array.length()];
+			for(int i = 0; i < result.length; i++)
+				result[i] = array.get(i);
+
+			return result;
+		}
+
+		/**
+		 * @return count of submitted tasks
+		 */
+		public long getSubmitted()
+		{
+			return submitted;
+		}
+
+		/**
+		 * @return count of finished tasks
+		 */
+		public long getCompleted()
+		{
+			return completed;
+		}
+
+		/**
+		 * @return count of tasks, rejected because queue was full
+		 */
+		public long getRejected()
+		{
+			return rejected;
+		}
+
+		/**
+		 * @return count of tasks, dropped because their deadline was passed
+		 */
+		public long getExpired()
+		{
+			return expired;
+		}
+
+		/**
+		 * @return count of queued tasks at the moment of snapshot
+		 */
+		public int getQueueDepth()
+		{
+			return queueDepth;
+		}
+
+		/**
+		 * @return max count of queued tasks, seen at submitting
+		 */
+		public long getMaxQueueDepth()
+		{
+			return maxQueueDepth;
+		}
+
+		/**
+		 * @return copy of histogram of time, which tasks spent in queue, see HISTOGRAM_BUCKETS
+		 */
+		public long[] getWaitHistogram()
+		{
+			return waitHistogram.clone();
+		}
+
+		/**
+		 * @return copy of histogram of running time of tasks, see HISTOGRAM_BUCKETS
+		 */
+		public long[] getRunHistogram()
+		{
+			return runHistogram.clone();
+		}
+
+		/**
+		 * @return running time of longest task in nanoseconds
+		 */
+		public long getLongestTaskNanos()
+		{
+			return longestNanos;
+		}
+
+		/**
+		 * @return name of thread, which ran longest task, or null
+		 */
+		public String getLongestTaskThread()
+		{
+			return longestThread;
+		}
+
+		/**
+		 * @return stack of thread, which submitted longest task, or null if it is unknown
+		 */
+		public StackTraceElement[] getLongestTaskSubmitter()
+		{
+			return longestSubmitter != null ? longestSubmitter.clone() : null;
+		}
+
+		/**
+		 * @return metrics of alive workers
+		 */
+		public List<WorkerSnapshot> getWorkers()
+		{
+			return workers;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder builder = new StringBuilder().append(lane)
+					.append(": submitted ").append(submitted).append(", completed ").append(completed)
+					.append(", rejected ").append(rejected).append(", expired ").append(expired)
+					.append(", queue ").append(queueDepth).append(" (max ").append(maxQueueDepth).append(')')
+					.append(", longest ").append(longestNanos / 1000).append(" us");
+
+			if(longestSubmitter != null)
+			{
+				/*
+				 * First frames are ThreadUtils and TaskScope, caller is the first frame outside of this package
+				 */
+				for(StackTraceElement frame : longestSubmitter)
+				{
+					if(!frame.getClassName().startsWith(ThreadUtils.class.getName()) && !frame.getClassName().startsWith(TaskScope.class.getName()))
+					{
+						builder.append(" from ").append(frame);
+						break;
+					}
+				}
+			}
+
+			builder.append(", workers ").append(workers);
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * Snapshot of metrics of one worker
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static class WorkerSnapshot
+	{
+		private final String name;
+		private final long busyNanos, idleNanos, tasks;
+
+		private WorkerSnapshot(String name, long busyNanos, long idleNanos, long tasks)
+		{
+			this.name = name;
+			this.busyNanos = busyNanos;
+			this.idleNanos = idleNanos;
+			this.tasks = tasks;
+		}
+
+		/**
+		 * @return name of thread
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return time of running tasks in nanoseconds since creation of worker or reset of metrics
+		 */
+		public long getBusyNanos()
+		{
+			return busyNanos;
+		}
+
+		/**
+		 * @return time of waiting for tasks in nanoseconds since creation of worker or reset of metrics
+		 */
+		public long getIdleNanos()
+		{
+			return idleNanos;
+		}
+
+		/**
+		 * @return count of finished tasks
+		 */
+		public long getTasks()
+		{
+			return tasks;
+		}
+
+		@Override
+		public String toString()
+		{
+			long total = busyNanos + idleNanos;
+			return name + " " + (total > 0 ? busyNanos * 100 / total : 0) + "% busy, " + tasks + " tasks";
+		}
+	}
+}
@@ -1,124 +1,744 @@
-package net.kivitechnologies.SupportLibrary.utils;
-
-import java.util.ArrayList;
-import android.annotation.SuppressLint;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-
-/**
- * Class for easy work with many threads and handlers
- * Forked from JavaCompiler Project
- * 
- * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
- * @version 1.0
- */
-public class ThreadUtils
-{	
-	public static int KILL_THREAD_FLAG = 0x000111;
-	
-	private static ArrayList<Thread> threads;
-	private static ArrayList<Handler> handlers;
-	private static Handler mHandler;
-	
-	static
-	{
-		threads = new ArrayList<Thread>();
-		handlers = new ArrayList<Handler>();
-	}
-	
-	/**
-	 * This method creates new thread and handler
-	 * 
-	 * @param code Runnable with code, which ill be executed at every thread run
-	 * @return id of Thread and Handler in this system
-	 */
-	public static synchronized int createNewThread(final Runnable code)
-	{
-		Thread newThread = new HThread(code);
-		newThread.start();
-		
-		threads.add(newThread);
-		while(mHandler == null){}
-		
-		handlers.add(mHandler);
-		mHandler = null;
-		
-		return threads.size() - 1;
-	}
-	
-	/**
-	 * This method kills thread
-	 * 
-	 * @param id id of thread in this system
-	 */
-	public static void killThread(int id)
-	{
-		Message msg = new Message();
-		msg.what = KILL_THREAD_FLAG;
-		getHandlerById(id).handleMessage(msg);
-	}
-	
-	/**
-	 * returns Thread
-	 * 
-	 * @param id id of thread in this system
-	 * @return Thread with specified id
-	 */
-	public static Thread getThreadById(int id)
-	{
-		return threads.get(id);
-	}
-	
-	/**
-	 * Returns Handler
-	 * 
-	 * @param id id of thread in this system
-	 * @return Handler with specified id
-	 */
-	public static Handler getHandlerById(int id)
-	{
-		return handlers.get(id);
-	}
-	
-	/**
-	 * Class for creating new Thread with specified Handler for receiving messages
-	 * 
-	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
-	 * @version 1.0
-	 */
-	private static class HThread extends Thread implements Runnable
-	{
-		private boolean firstLaunch = true;
-		private Runnable codeRun;
-		
-		public HThread(Runnable code)
-		{
-			codeRun = code;
-		}
-		
-		@SuppressLint("HandlerLeak")
-		public void run()
-		{
-			Looper.prepare();
-			
-			mHandler = new Handler()
-			{
-				public void handleMessage(Message msg)
-				{
-					if(msg.what == KILL_THREAD_FLAG)
-						Looper.myLooper().quit();
-					else
-						super.handleMessage(msg);
-				}
-			};
-			
-			if(!firstLaunch && codeRun != null)
-				codeRun.run();
-			
-			firstLaunch = false;
-			
-			Looper.loop();
-		}
-	}
-}	
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Class for easy work with many threads and handlers
+ * Forked from JavaCompiler Project
+ *
+ * Every thread is a looper thread with own Handler. Count of alive threads is limited by MAX_THREADS,
+ * slots of killed threads are used again, but ids are not: id of killed thread never returns thread, created later
+ *
+ * Short tasks should be submitted into shared pool by submit, results of them are delivered on main looper
+ * Pool is split into priority lanes, see Lane, lanes can be measured, see setMetricsEnabled
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class ThreadUtils
+{
+	public static int KILL_THREAD_FLAG = 0x000111;
+
+	/**
+	 * Max count of alive threads
+	 */
+	public static final int MAX_THREADS = 64;
+
+	/**
+	 * Alive threads by slot, guarded by ThreadUtils.class
+	 * Id of thread is count of created threads * MAX_THREADS + slot, so slot is found by id without search
+	 */
+	private static final HThread[] threads = new HThread[MAX_THREADS];
+	private static int createdThreads;
+
+	/**
+	 * Executors of lanes, by ordinal of Lane
+	 */
+	private static final ThreadPoolExecutor[] lanes = new ThreadPoolExecutor[Lane.values().length];
+
+	/**
+	 * Task, which is running on current thread of pool, used by publishProgress
+	 */
+	private static final ThreadLocal<TaskFuture<?>> currentTask = new ThreadLocal<TaskFuture<?>>();
+
+	private static Handler mainHandler;
+
+	/**
+	 * metrics metrics of lanes, null if they are disabled
+	 * loggerThread id of thread, which logs metrics periodically, or -1
+	 */
+	private static volatile ThreadMetrics metrics;
+	private static int loggerThread = -1;
+
+	/**
+	 * Enumeration contains priority lanes of submitted tasks
+	 * Every lane has own threads with own OS priority and own bounded queue, so tasks of lower lanes never delay
+	 * tasks of higher lanes in queue, and threads of higher lanes get more CPU time
+	 *
+	 * UI_CRITICAL    - work, result of which is awaited by visible UI right now
+	 * USER_INITIATED - work, started by user, e.g. opening of file, default lane
+	 * PREFETCH       - speculative loading, it is usually submitted with deadline
+	 * IDLE           - maintenance work, e.g. cleaning of caches
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static enum Lane
+	{
+		UI_CRITICAL(Process.THREAD_PRIORITY_DISPLAY, 0, 64),
+		USER_INITIATED(Process.THREAD_PRIORITY_DEFAULT, 0, 256),
+		PREFETCH(Process.THREAD_PRIORITY_BACKGROUND, 2, 128),
+		IDLE(Process.THREAD_PRIORITY_LOWEST, 1, 64);
+
+		/**
+		 * priority OS priority of threads
+		 * threads count of threads, 0 means count of cores
+		 * capacity max count of queued tasks
+		 */
+		private final int priority, threads, capacity;
+
+		private Lane(int priority, int threads, int capacity)
+		{
+			this.priority = priority;
+			this.threads = threads;
+			this.capacity = capacity;
+		}
+	}
+
+	static
+	{
+		int cores = HardwareUtils.getCoresCount();
+
+		for(final Lane lane : Lane.values())
+		{
+			int size = lane.threads > 0 ? Math.min(lane.threads, cores) : cores;
+
+			ThreadPoolExecutor executor = new LaneExecutor(lane, size, new ThreadFactory()
+			{
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(final Runnable runnable)
+				{
+					Thread thread = new Thread(new Runnable()
+					{
+						public void run()
+						{
+							Process.setThreadPriority(lane.priority);
+							try
+							{
+								runnable.run();
+							}
+							finally
+							{
+								ThreadMetrics metrics = ThreadUtils.metrics;
+								if(metrics != null)
+									metrics.workerExited(lane);
+							}
+						}
+					}, "ThreadUtils-" + lane.name().toLowerCase() + "-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+
+			lanes[lane.ordinal()] = executor;
+		}
+	}
+
+	/**
+	 * This method creates new thread and handler
+	 * Returns after looper of thread is prepared, so handler can be used at once
+	 *
+	 * @param code Runnable with code, which will be executed on thread before processing of messages, can be null
+	 * @throws IllegalStateException if MAX_THREADS threads are alive already
+	 * @return id of Thread and Handler in this system
+	 */
+	public static int createNewThread(final Runnable code)
+	{
+		HThread thread;
+
+		synchronized(ThreadUtils.class)
+		{
+			int slot = 0;
+			while(slot < MAX_THREADS && threads[slot] != null)
+				slot++;
+
+			if(slot == MAX_THREADS)
+				throw new IllegalStateException("Too many threads, max count is " + MAX_THREADS);
+
+			/*
+			 * Counter wraps before id overflows, so id is reused only after 2^25 created threads
+			 */
+			createdThreads = (createdThreads + 1) & (Integer.MAX_VALUE / MAX_THREADS);
+			thread = new HThread(createdThreads * MAX_THREADS + slot, code);
+			threads[slot] = thread;
+		}
+
+		thread.start();
+
+		/*
+		 * getLooper waits until looper is prepared, handler is published by this thread only
+		 * killThread, called before publishing, only marks thread, so kill message is sent here
+		 */
+		thread.handler = new Handler(thread.getLooper(), thread);
+		if(thread.killed)
+			thread.handler.sendEmptyMessage(KILL_THREAD_FLAG);
+
+		return thread.id;
+	}
+
+	/**
+	 * This method kills thread
+	 * Thread finishes current message and quits, its slot is released after that
+	 *
+	 * @param id id of thread in this system
+	 */
+	public static void killThread(int id)
+	{
+		HThread thread = (HThread)getThreadById(id);
+		if(thread == null)
+			return;
+
+		/*
+		 * Flag is set before reading of handler, and createNewThread sets handler before reading of flag,
+		 * so at least one of them sends kill message
+		 */
+		thread.killed = true;
+		Handler handler = thread.handler;
+		if(handler != null)
+			handler.sendEmptyMessage(KILL_THREAD_FLAG);
+	}
+
+	/**
+	 * returns Thread
+	 *
+	 * @param id id of thread in this system
+	 * @return Thread with specified id or null if it is not alive
+	 */
+	public static synchronized Thread getThreadById(int id)
+	{
+		if(id < 0)
+			return null;
+
+		HThread thread = threads[id % MAX_THREADS];
+		return thread != null && thread.id == id ? thread : null;
+	}
+
+	/**
+	 * Returns Handler
+	 *
+	 * @param id id of thread in this system
+	 * @return Handler with specified id or null if thread is not alive
+	 */
+	public static Handler getHandlerById(int id)
+	{
+		HThread thread = (HThread)getThreadById(id);
+		return thread != null ? thread.handler : null;
+	}
+
+	/**
+	 * Submits task into USER_INITIATED lane
+	 *
+	 * @param task task for executing
+	 * @return future, which can be used for waiting result or cancelling task
+	 */
+	public static <T> TaskFuture<T> submit(Callable<T> task)
+	{
+		return submit(Lane.USER_INITIATED, task, null, 0);
+	}
+
+	/**
+	 * Submits task into USER_INITIATED lane
+	 * Callback is called on main looper: onComplete with result or onError with thrown exception
+	 * Nothing is called, if task was cancelled
+	 *
+	 * @param task     task for executing, can call publishProgress
+	 * @param callback callback or null
+	 * @return future, which can be used for waiting result or cancelling task
+	 */
+	public static <T> TaskFuture<T> submit(Callable<T> task, TaskCallback<T> callback)
+	{
+		return submit(Lane.USER_INITIATED, task, callback, 0);
+	}
+
+	/**
+	 * Submits task into lane
+	 * If deadline is passed before task is started, task is cancelled and dropped instead of running
+	 *
+	 * @param lane     priority lane
+	 * @param task     task for executing, can call publishProgress
+	 * @param callback callback or null
+	 * @param deadline time in SystemClock.uptimeMillis base, after which task is not needed, 0 for no deadline
+	 * @throws RejectedExecutionException if queue of lane is full even after dropping expired tasks
+	 * @return future, which can be used for waiting result or cancelling task
+	 */
+	public static <T> TaskFuture<T> submit(Lane lane, Callable<T> task, TaskCallback<T> callback, long deadline)
+	{
+		TaskFuture<T> future = new TaskFuture<T>(lane, task, callback, deadline);
+		ThreadPoolExecutor executor = lanes[lane.ordinal()];
+		executor.execute(future);
+
+		ThreadMetrics metrics = ThreadUtils.metrics;
+		if(metrics != null)
+			metrics.submitted(lane, executor.getQueue().size());
+
+		return future;
+	}
+
+	/**
+	 * Creates task, which is not submitted into lane, but is completed by complete or fail
+	 * Used by TaskScope for tasks, which are executed in several parts
+	 *
+	 * @param lane     lane, in which parts of task are executed
+	 * @param callback callback or null
+	 * @return future of task
+	 */
+	static <T> TaskFuture<T> newPendingTask(Lane lane, TaskCallback<T> callback)
+	{
+		return new TaskFuture<T>(lane, new Callable<T>()
+		{
+			public T call()
+			{
+				throw new IllegalStateException("Pending task can not be executed");
+			}
+		}, callback, 0);
+	}
+
+	/**
+	 * Calls code as part of task, so publishProgress of code is delivered to callback of task
+	 *
+	 * @param task task, part of which is executed
+	 * @param code code of part
+	 * @throws Exception any exception, thrown by code
+	 * @return result of code
+	 */
+	static <V> V callAs(TaskFuture<?> task, Callable<V> code) throws Exception
+	{
+		TaskFuture<?> previous = currentTask.get();
+		currentTask.set(task);
+		try
+		{
+			return code.call();
+		}
+		finally
+		{
+			currentTask.set(previous);
+		}
+	}
+
+	/**
+	 * Returns executor of lane for code, which accepts Executor, e.g. RateLimiter
+	 * Runnables, executed by it, have no callbacks and deadlines
+	 *
+	 * @param lane priority lane
+	 * @return executor of lane
+	 */
+	public static Executor getExecutor(Lane lane)
+	{
+		return lanes[lane.ordinal()];
+	}
+
+	/**
+	 * Returns count of tasks, which wait in queue of lane
+	 *
+	 * @param lane priority lane
+	 * @return count of queued tasks
+	 */
+	public static int getQueueDepth(Lane lane)
+	{
+		return lanes[lane.ordinal()].getQueue().size();
+	}
+
+	/**
+	 * Enables or disables collecting of metrics of lanes, see ThreadMetrics
+	 * When metrics are enabled, stack of thread is captured at every submit for finding of longest task,
+	 * when they are disabled, overhead is one volatile read per task
+	 *
+	 * @param enabled true for enabling metrics, false for disabling and dropping collected ones
+	 */
+	public static synchronized void setMetricsEnabled(boolean enabled)
+	{
+		if(enabled == (metrics != null))
+			return;
+
+		metrics = enabled ? new ThreadMetrics() : null;
+	}
+
+	/**
+	 * Returns metrics of lanes
+	 *
+	 * @return metrics or null if they are disabled
+	 */
+	public static ThreadMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Enables metrics and starts logging of their snapshots with tag "ThreadUtils"
+	 *
+	 * @param interval interval of logging in milliseconds
+	 */
+	public static synchronized void startMetricsLogging(final long interval)
+	{
+		stopMetricsLogging();
+		setMetricsEnabled(true);
+
+		loggerThread = createNewThread(null);
+		final Handler handler = getHandlerById(loggerThread);
+		handler.postDelayed(new Runnable()
+		{
+			public void run()
+			{
+				ThreadMetrics metrics = ThreadUtils.metrics;
+				if(metrics != null)
+					Log.i("ThreadUtils", metrics.getSnapshot().toString());
+
+				handler.postDelayed(this, interval);
+			}
+		}, interval);
+	}
+
+	/**
+	 * Stops logging of metrics, metrics stay enabled
+	 */
+	public static synchronized void stopMetricsLogging()
+	{
+		if(loggerThread < 0)
+			return;
+
+		killThread(loggerThread);
+		loggerThread = -1;
+	}
+
+	/**
+	 * Publishes progress of task, which is running on current thread
+	 * Progress is delivered into TaskCallback.onProgress on main looper, if several values are published
+	 * before main looper handles them, only last one is delivered
+	 * Does nothing, if current thread is not running submitted task
+	 *
+	 * @param progress progress of task
+	 */
+	public static void publishProgress(int progress)
+	{
+		TaskFuture<?> task = currentTask.get();
+		if(task != null)
+			task.publishProgress(progress);
+	}
+
+	private static synchronized Handler mainHandler()
+	{
+		if(mainHandler == null)
+			mainHandler = new Handler(Looper.getMainLooper());
+
+		return mainHandler;
+	}
+
+	/**
+	 * Releases slot of finished thread
+	 */
+	private static synchronized void release(HThread thread)
+	{
+		int slot = thread.id % MAX_THREADS;
+		if(threads[slot] == thread)
+			threads[slot] = null;
+	}
+
+	/**
+	 * Class for creating new Thread with specified Handler for receiving messages
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	private static class HThread extends HandlerThread implements Handler.Callback
+	{
+		private final int id;
+		private final Runnable codeRun;
+		private volatile Handler handler;
+		private volatile boolean killed;
+
+		public HThread(int id, Runnable code)
+		{
+			super("ThreadUtils-" + id);
+
+			this.id = id;
+			codeRun = code;
+		}
+
+		@Override
+		protected void onLooperPrepared()
+		{
+			if(codeRun != null)
+				codeRun.run();
+		}
+
+		public boolean handleMessage(Message msg)
+		{
+			if(msg.what != KILL_THREAD_FLAG)
+				return false;
+
+			Looper.myLooper().quit();
+			return true;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				super.run();
+			}
+			finally
+			{
+				release(this);
+			}
+		}
+	}
+
+	/**
+	 * Handler of full queue of lane: drops expired tasks from queue and retries, rejects task if queue is still full
+	 */
+	private static class ExpiredDiscardPolicy implements RejectedExecutionHandler
+	{
+		private final Lane lane;
+
+		public ExpiredDiscardPolicy(Lane lane)
+		{
+			this.lane = lane;
+		}
+
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor)
+		{
+			ThreadMetrics metrics = ThreadUtils.metrics;
+
+			if(executor.isShutdown())
+				throw new RejectedExecutionException("Lane is shut down");
+
+			BlockingQueue<Runnable> queue = executor.getQueue();
+			for(Runnable queued : queue.toArray(new Runnable[0]))
+			{
+				if(queued instanceof TaskFuture && ((TaskFuture<?>)queued).isExpired() && queue.remove(queued))
+				{
+					((TaskFuture<?>)queued).cancel(false);
+					if(metrics != null)
+						metrics.expired(lane);
+				}
+			}
+
+			if(!queue.offer(runnable))
+			{
+				if(metrics != null)
+					metrics.rejected(lane);
+				throw new RejectedExecutionException("Queue of lane is full");
+			}
+		}
+	}
+
+	/**
+	 * Executor of lane, reports start and end of every task into metrics
+	 */
+	private static class LaneExecutor extends ThreadPoolExecutor
+	{
+		private final Lane lane;
+
+		public LaneExecutor(Lane lane, int size, ThreadFactory factory)
+		{
+			super(size, size, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(lane.capacity), factory, new ExpiredDiscardPolicy(lane));
+			this.lane = lane;
+		}
+
+		@Override
+		protected void beforeExecute(Thread thread, Runnable runnable)
+		{
+			ThreadMetrics metrics = ThreadUtils.metrics;
+			if(metrics == null)
+				return;
+
+			long submitTime = runnable instanceof TaskFuture ? ((TaskFuture<?>)runnable).submitTime : 0;
+			metrics.started(lane, submitTime != 0 ? System.nanoTime() - submitTime : -1);
+		}
+
+		@Override
+		protected void afterExecute(Runnable runnable, Throwable error)
+		{
+			ThreadMetrics metrics = ThreadUtils.metrics;
+			if(metrics != null)
+				metrics.finished(lane, runnable instanceof TaskFuture ? ((TaskFuture<?>)runnable).submitter : null);
+		}
+	}
+
+	/**
+	 * Callback of submitted task, all methods are called on main looper
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static abstract class TaskCallback<T>
+	{
+		/**
+		 * Called if task returned result
+		 *
+		 * @param result result of task
+		 */
+		public abstract void onComplete(T result);
+
+		/**
+		 * Called if task thrown exception
+		 *
+		 * @param error thrown exception
+		 */
+		public void onError(Throwable error)
+		{
+
+		}
+
+		/**
+		 * Called if task published progress
+		 *
+		 * @param progress last published progress
+		 */
+		public void onProgress(int progress)
+		{
+
+		}
+	}
+
+	/**
+	 * Future of submitted task
+	 * Task can be cancelled by cancel, callback is not called after that
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static class TaskFuture<T> extends FutureTask<T>
+	{
+		private final Lane lane;
+		private final TaskCallback<T> callback;
+		private final long deadline;
+
+		/**
+		 * Time and stack of submitting, they are captured only if metrics are enabled
+		 */
+		private final long submitTime;
+		private final Throwable submitter;
+		private final AtomicBoolean progressPosted = new AtomicBoolean();
+		private volatile int progress;
+
+		private final Runnable progressTask = new Runnable()
+		{
+			public void run()
+			{
+				progressPosted.set(false);
+				if(!isDone())
+					callback.onProgress(progress);
+			}
+		};
+
+		private TaskFuture(Lane lane, Callable<T> task, TaskCallback<T> callback, long deadline)
+		{
+			super(task);
+			this.lane = lane;
+			this.callback = callback;
+			this.deadline = deadline;
+
+			boolean measured = metrics != null;
+			submitTime = measured ? System.nanoTime() : 0;
+			submitter = measured ? new Throwable("Submitted here") : null;
+		}
+
+		/**
+		 * @return true if deadline of task is passed
+		 */
+		public boolean isExpired()
+		{
+			return deadline != 0 && SystemClock.uptimeMillis() > deadline;
+		}
+
+		@Override
+		public void run()
+		{
+			if(isExpired())
+			{
+				cancel(false);
+
+				ThreadMetrics metrics = ThreadUtils.metrics;
+				if(metrics != null)
+					metrics.expired(lane);
+				return;
+			}
+
+			TaskFuture<?> previous = currentTask.get();
+			currentTask.set(this);
+			try
+			{
+				super.run();
+			}
+			finally
+			{
+				currentTask.set(previous);
+			}
+		}
+
+		/**
+		 * Completes pending task with result
+		 */
+		void complete(T result)
+		{
+			set(result);
+		}
+
+		/**
+		 * Completes pending task with exception, it is passed into TaskCallback.onError
+		 */
+		void fail(Throwable error)
+		{
+			setException(error);
+		}
+
+		private void publishProgress(int progress)
+		{
+			this.progress = progress;
+			if(callback != null && progressPosted.compareAndSet(false, true))
+				mainHandler().post(progressTask);
+		}
+
+		@Override
+		protected void done()
+		{
+			if(callback == null || isCancelled())
+				return;
+
+			mainHandler().post(new Runnable()
+			{
+				public void run()
+				{
+					mainHandler().removeCallbacks(progressTask);
+
+					T result;
+					try
+					{
+						result = get();
+					}
+					catch(ExecutionException e)
+					{
+						callback.onError(e.getCause());
+						return;
+					}
+					catch(InterruptedException e)
+					{
+						callback.onError(e);
+						return;
+					}
+					catch(CancellationException e)
+					{
+						return;
+					}
+
+					callback.onComplete(result);
+				}
+			});
+		}
+	}
+}
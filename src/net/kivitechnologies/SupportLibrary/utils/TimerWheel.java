@@ -0,0 +1,378 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Hashed timer wheel for thousands of delayed tasks, e.g. timeouts
+ * MessageQueue keeps delayed messages in sorted list, so every postDelayed costs O(n),
+ * here scheduling and cancelling cost O(1) at any count of pending tasks
+ *
+ * Time is split into ticks, every slot of wheel contains tasks, which expire at ticks with the same index modulo size of wheel
+ * Wheel is turned by own looper thread, which sleeps until tick of earliest pending task, not waking at empty ticks
+ * Tasks are fired within one tick after their delay, so tick duration is precision of wheel
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class TimerWheel
+{
+	/**
+	 * Default duration of tick in milliseconds and default count of slots
+	 */
+	public static final long DEFAULT_TICK_DURATION = 10;
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static TimerWheel mainWheel;
+
+	private final Handler target;
+	private final HandlerThread thread;
+	private final Handler handler;
+
+	private final long tickDuration, startTime;
+	private final int mask;
+
+	/**
+	 * slots heads of lists of timeouts, used by thread of wheel only
+	 * tick index of next tick for processing, used by thread of wheel only
+	 * linked count of timeouts in slots, used by thread of wheel only
+	 */
+	private final Timeout[] slots;
+	private long tick;
+	private int linked;
+
+	/**
+	 * Timeouts, scheduled or cancelled by any thread, wheel takes them at every tick
+	 */
+	private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicBoolean ticking = new AtomicBoolean();
+
+	/**
+	 * Time of next planned tick in SystemClock.uptimeMillis base, Long.MAX_VALUE while wheel is being turned
+	 * Timeout with earlier deadline wakes wheel at once
+	 */
+	private volatile long wakeTime = Long.MAX_VALUE;
+
+	private final Runnable tickTask = new Runnable()
+	{
+		public void run()
+		{
+			onTick();
+		}
+	};
+
+	/**
+	 * Returns shared wheel, which fires tasks on main thread
+	 *
+	 * @return shared wheel
+	 */
+	public static synchronized TimerWheel getMainWheel()
+	{
+		if(mainWheel == null)
+			mainWheel = new TimerWheel(new Handler(Looper.getMainLooper()));
+
+		return mainWheel;
+	}
+
+	/**
+	 * Creates wheel with default tick duration and size
+	 *
+	 * @param target handler, on thread of which tasks are fired, null for firing on thread of wheel
+	 */
+	public TimerWheel(Handler target)
+	{
+		this(target, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Creates wheel
+	 *
+	 * @param target       handler, on thread of which tasks are fired, null for firing on thread of wheel
+	 * @param tickDuration duration of tick in milliseconds
+	 * @param wheelSize    count of slots, it is rounded up to power of two
+	 */
+	public TimerWheel(Handler target, long tickDuration, int wheelSize)
+	{
+		if(tickDuration <= 0)
+			throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+		if(wheelSize <= 0 || wheelSize > 1 << 30)
+			throw new IllegalArgumentException("Wrong size of wheel: " + wheelSize);
+
+		int size = 1;
+		while(size < wheelSize)
+			size <<= 1;
+
+		this.target = target;
+		this.tickDuration = tickDuration;
+		this.mask = size - 1;
+		this.slots = new Timeout[size];
+
+		thread = new HandlerThread("TimerWheel", Process.THREAD_PRIORITY_DISPLAY);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+
+		startTime = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Schedules task
+	 * Can be called on any thread
+	 *
+	 * @param task  task for firing
+	 * @param delay delay in milliseconds
+	 * @return timeout, which can be used for cancelling task
+	 */
+	public Timeout schedule(Runnable task, long delay)
+	{
+		Timeout timeout = new Timeout(this, task, SystemClock.uptimeMillis() + Math.max(0, delay));
+
+		pending.incrementAndGet();
+		scheduled.offer(timeout);
+
+		if(ticking.compareAndSet(false, true) || timeout.deadline < wakeTime)
+			handler.post(tickTask);
+
+		return timeout;
+	}
+
+	/**
+	 * @return count of scheduled tasks, which were not fired or cancelled yet
+	 */
+	public int getPendingCount()
+	{
+		return pending.get();
+	}
+
+	/**
+	 * Stops thread of wheel, pending tasks are not fired
+	 */
+	public void stop()
+	{
+		thread.quit();
+	}
+
+	/**
+	 * Turns wheel up to current time, runs on thread of wheel
+	 */
+	private void onTick()
+	{
+		wakeTime = Long.MAX_VALUE;
+		handler.removeCallbacks(tickTask);
+
+		long now = SystemClock.uptimeMillis();
+		long current = (now - startTime) / tickDuration;
+
+		removeCancelled();
+		transferScheduled();
+
+		/*
+		 * Every slot is visited at most once, even if wheel was sleeping for many rounds
+		 */
+		long last = Math.min(current, tick + mask);
+		for(long index = tick; index <= last; index++)
+			expire(slots[(int)(index & mask)], current);
+
+		tick = Math.max(tick, current + 1);
+
+		if(linked > 0)
+		{
+			wakeTime = startTime + nextTick() * tickDuration;
+			handler.postAtTime(tickTask, wakeTime);
+			return;
+		}
+
+		/*
+		 * Timeout can be scheduled after check of linked timeouts, but before reset of flag, so check it again
+		 */
+		removeCancelled();
+		ticking.set(false);
+		if(pending.get() > 0 && ticking.compareAndSet(false, true))
+			handler.post(tickTask);
+	}
+
+	/**
+	 * Puts newly scheduled timeouts into slots
+	 */
+	private void transferScheduled()
+	{
+		Timeout timeout;
+		while((timeout = scheduled.poll()) != null)
+		{
+			if(timeout.state.get() != Timeout.WAITING)
+				continue;
+
+			long ticks = Math.max((timeout.deadline - startTime + tickDuration - 1) / tickDuration, tick);
+			timeout.ticks = ticks;
+
+			int slot = (int)(ticks & mask);
+			timeout.slot = slot;
+			timeout.next = slots[slot];
+			if(slots[slot] != null)
+				slots[slot].previous = timeout;
+			slots[slot] = timeout;
+			linked++;
+		}
+	}
+
+	/**
+	 * Removes cancelled timeouts from slots
+	 */
+	private void removeCancelled()
+	{
+		Timeout timeout;
+		while((timeout = cancelled.poll()) != null)
+			unlink(timeout);
+	}
+
+	/**
+	 * Returns tick of earliest linked timeout: first slot, which has timeout of current round, or earliest timeout of next rounds
+	 * Every linked timeout expires at tick or later, so timeout of slot expires at index of slot or in one of next rounds
+	 */
+	private long nextTick()
+	{
+		long earliest = Long.MAX_VALUE;
+		for(long index = tick; index <= tick + mask; index++)
+		{
+			for(Timeout timeout = slots[(int)(index & mask)]; timeout != null; timeout = timeout.next)
+			{
+				if(timeout.ticks == index)
+					return index;
+
+				earliest = Math.min(earliest, timeout.ticks);
+			}
+		}
+
+		return earliest;
+	}
+
+	/**
+	 * Fires timeouts of slot, which expire at current tick or before it
+	 */
+	private void expire(Timeout timeout, long current)
+	{
+		while(timeout != null)
+		{
+			Timeout next = timeout.next;
+
+			if(timeout.ticks <= current)
+			{
+				unlink(timeout);
+				if(timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED))
+				{
+					pending.decrementAndGet();
+					if(target != null)
+						target.post(timeout);
+					else
+						timeout.run();
+				}
+			}
+
+			timeout = next;
+		}
+	}
+
+	private void unlink(Timeout timeout)
+	{
+		if(timeout.slot < 0)
+			return;
+
+		if(timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else if(slots[timeout.slot] == timeout)
+			slots[timeout.slot] = timeout.next;
+		else
+			return;
+
+		if(timeout.next != null)
+			timeout.next.previous = timeout.previous;
+
+		timeout.next = timeout.previous = null;
+		timeout.slot = -1;
+		linked--;
+	}
+
+	/**
+	 * Scheduled task
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static final class Timeout implements Runnable
+	{
+		private static final int WAITING = 0, EXPIRED = 1, CANCELLED = 2;
+
+		private final TimerWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+
+		/**
+		 * Position in wheel, used by thread of wheel only
+		 */
+		private Timeout next, previous;
+		private long ticks;
+		private int slot = -1;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadline)
+		{
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels task
+		 * Can be called on any thread
+		 *
+		 * @return true if task was cancelled, false if it was fired or cancelled already
+		 */
+		public boolean cancel()
+		{
+			if(!state.compareAndSet(WAITING, CANCELLED))
+				return false;
+
+			wheel.pending.decrementAndGet();
+			wheel.cancelled.offer(this);
+			return true;
+		}
+
+		/**
+		 * @return true if task was cancelled
+		 */
+		public boolean isCancelled()
+		{
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * @return true if delay of task is passed and task was fired
+		 */
+		public boolean isExpired()
+		{
+			return state.get() == EXPIRED;
+		}
+
+		/**
+		 * @return time of firing in SystemClock.uptimeMillis base
+		 */
+		public long getDeadline()
+		{
+			return deadline;
+		}
+
+		public void run()
+		{
+			task.run();
+		}
+	}
+}
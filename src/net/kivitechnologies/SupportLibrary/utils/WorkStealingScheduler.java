@@ -0,0 +1,709 @@
+package net.kivitechnologies.SupportLibrary.utils;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+/**
+ * Fork/join scheduler for CPU-heavy jobs, e.g. processing of bitmaps or scanning of directories
+ * ForkJoinPool is available since API 21 only, so this class is used on older devices and has the same model:
+ * every worker has own deque, it pushes and pops forked tasks at one end, idle workers steal tasks from other end
+ *
+ * Workers are background threads, count of them is taken from HardwareUtils.getCoresCount
+ * Main thread is never used as worker
+ *
+ * @warning invoke and parallelFor block caller until the end of job, do not call them on main thread for long jobs,
+ * use execute or ThreadUtils.submit instead
+ *
+ * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+ * @version 1.0
+ */
+public class WorkStealingScheduler
+{
+	/**
+	 * Count of leaf ranges per worker, used by parallelFor with default threshold
+	 */
+	private static final int RANGES_PER_WORKER = 8;
+
+	private static WorkStealingScheduler defaultScheduler;
+
+	private final Worker[] workers;
+
+	/**
+	 * Tasks, submitted by threads, which are not workers of this scheduler
+	 */
+	private final TaskDeque inbox = new TaskDeque();
+
+	/**
+	 * Idle workers wait on this lock, idle is count of them
+	 */
+	private final Object lock = new Object();
+	private final AtomicInteger idle = new AtomicInteger();
+
+	private volatile boolean shutdown;
+	private volatile long statisticsStart = System.nanoTime();
+
+	/**
+	 * Returns shared scheduler with one worker per core
+	 *
+	 * @return shared scheduler
+	 */
+	public static synchronized WorkStealingScheduler getDefault()
+	{
+		if(defaultScheduler == null)
+			defaultScheduler = new WorkStealingScheduler();
+
+		return defaultScheduler;
+	}
+
+	/**
+	 * Creates scheduler with one worker per core
+	 */
+	public WorkStealingScheduler()
+	{
+		this(HardwareUtils.getCoresCount());
+	}
+
+	/**
+	 * Creates scheduler
+	 *
+	 * @param parallelism count of workers
+	 */
+	public WorkStealingScheduler(int parallelism)
+	{
+		if(parallelism <= 0)
+			throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+
+		workers = new Worker[parallelism];
+		for(int i = 0; i < parallelism; i++)
+			workers[i] = new Worker(i);
+
+		for(Worker worker : workers)
+			worker.start();
+	}
+
+	/**
+	 * @return count of workers
+	 */
+	public int getParallelism()
+	{
+		return workers.length;
+	}
+
+	/**
+	 * Starts task asynchronously
+	 *
+	 * @param task task for executing
+	 */
+	public void execute(Task task)
+	{
+		task.scheduler = this;
+		push(task);
+	}
+
+	/**
+	 * Executes task and waits for its end
+	 * If it is called on worker of this scheduler, task is computed on the same thread
+	 *
+	 * @param task task for executing
+	 * @throws RuntimeException or Error thrown by task
+	 */
+	public void invoke(Task task)
+	{
+		task.scheduler = this;
+
+		if(currentWorker() != null)
+			task.run();
+		else
+			push(task);
+
+		task.join();
+	}
+
+	/**
+	 * Calls body for all indexes from range [from, to), split into subranges, which are executed in parallel
+	 * Threshold is chosen so that every worker gets several subranges
+	 *
+	 * @param from first index, inclusive
+	 * @param to   last index, exclusive
+	 * @param body body of loop
+	 */
+	public void parallelFor(int from, int to, RangeBody body)
+	{
+		int threshold = (to - from) / (workers.length * RANGES_PER_WORKER);
+		parallelFor(from, to, Math.max(1, threshold), body);
+	}
+
+	/**
+	 * Calls body for all indexes from range [from, to)
+	 * Range is split in halves recursively while it is longer than threshold, halves are executed in parallel
+	 * Small threshold gives better balance of work, big threshold gives smaller overhead
+	 *
+	 * @param from      first index, inclusive
+	 * @param to        last index, exclusive
+	 * @param threshold max length of range, which is not split
+	 * @param body      body of loop, called for subranges
+	 */
+	public void parallelFor(int from, int to, int threshold, RangeBody body)
+	{
+		if(threshold <= 0)
+			throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+
+		if(from < to)
+			invoke(new RangeTask(from, to, threshold, body));
+	}
+
+	/**
+	 * Stops all workers, tasks, which were not started, are not executed
+	 * They are completed with CancellationException, so threads, which join them, do not hang
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+		synchronized(lock)
+		{
+			lock.notifyAll();
+		}
+
+		cancelPending();
+	}
+
+	/**
+	 * Returns time, which worker spent on executing tasks since creation of scheduler or last resetStatistics
+	 *
+	 * @param worker index of worker
+	 * @return busy time in nanoseconds
+	 */
+	public long getBusyTime(int worker)
+	{
+		return workers[worker].busyNanos.get();
+	}
+
+	/**
+	 * @param worker index of worker
+	 * @return count of tasks, which worker took from queues and executed
+	 */
+	public long getExecutedCount(int worker)
+	{
+		return workers[worker].executed.get();
+	}
+
+	/**
+	 * @param worker index of worker
+	 * @return count of tasks, which worker stole from other workers
+	 */
+	public long getStealCount(int worker)
+	{
+		return workers[worker].steals.get();
+	}
+
+	/**
+	 * Returns part of time, which worker was busy
+	 *
+	 * @param worker index of worker
+	 * @return utilization from 0 to 1
+	 */
+	public float getUtilization(int worker)
+	{
+		long total = System.nanoTime() - statisticsStart;
+		return total > 0 ? Math.min(1.0f, (float)getBusyTime(worker) / total) : 0.0f;
+	}
+
+	/**
+	 * Resets busy time and counters of all workers
+	 */
+	public void resetStatistics()
+	{
+		for(Worker worker : workers)
+		{
+			worker.busyNanos.set(0);
+			worker.executed.set(0);
+			worker.steals.set(0);
+		}
+		statisticsStart = System.nanoTime();
+	}
+
+	/**
+	 * Returns worker of this scheduler, which is current thread
+	 *
+	 * @return current worker or null
+	 */
+	private Worker currentWorker()
+	{
+		Thread thread = Thread.currentThread();
+		if(thread instanceof Worker && ((Worker)thread).scheduler() == this)
+			return (Worker)thread;
+
+		return null;
+	}
+
+	/**
+	 * Pushes task into deque of current worker or into inbox, wakes idle worker
+	 */
+	private void push(Task task)
+	{
+		if(shutdown)
+			throw new IllegalStateException("Scheduler is shut down");
+
+		Worker worker = currentWorker();
+		if(worker != null)
+			worker.deque.push(task);
+		else
+			inbox.push(task);
+
+		/*
+		 * Scheduler was shut down after check, so task can be missed by cancelPending of shutdown
+		 */
+		if(shutdown)
+		{
+			cancelPending();
+			return;
+		}
+
+		/*
+		 * Worker increments idle before checking queues, so it sees this task or it is notified here
+		 */
+		if(idle.get() > 0)
+		{
+			synchronized(lock)
+			{
+				lock.notify();
+			}
+		}
+	}
+
+	/**
+	 * Completes all queued tasks with CancellationException
+	 */
+	private void cancelPending()
+	{
+		cancelAll(inbox);
+		for(Worker worker : workers)
+			cancelAll(worker.deque);
+	}
+
+	private static void cancelAll(TaskDeque deque)
+	{
+		Task task;
+		while((task = deque.pollFirst()) != null)
+			task.complete(new CancellationException("Scheduler is shut down"));
+	}
+
+	private boolean hasWork()
+	{
+		if(!inbox.isEmpty())
+			return true;
+
+		for(Worker worker : workers)
+			if(!worker.deque.isEmpty())
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Task, which can fork subtasks and join them
+	 *
+	 * @author K. V. Bogatikov, KiVITechnologies Ltd, 2017
+	 * @version 1.0
+	 */
+	public static abstract class Task
+	{
+		private volatile boolean done;
+		private Throwable error;
+		private WorkStealingScheduler scheduler;
+
+		/**
+		 * Main code of task, runs on worker
+		 */
+		protected abstract void compute();
+
+		/**
+		 * Starts task asynchronously on scheduler of current worker, or on default scheduler
+		 *
+		 * @return this task
+		 */
+		public final Task fork()
+		{
+			Thread thread = Thread.currentThread();
+			WorkStealingScheduler scheduler = thread instanceof Worker ? ((Worker)thread).scheduler() : getDefault();
+
+			this.scheduler = scheduler;
+			scheduler.push(this);
+			return this;
+		}
+
+		/**
+		 * Waits for the end of task
+		 * Worker does not block, but executes other tasks while waiting
+		 *
+		 * @throws RuntimeException or Error thrown by task
+		 * @throws CancellationException if scheduler was shut down before task was started
+		 */
+		public final void join()
+		{
+			if(!done)
+			{
+				WorkStealingScheduler scheduler = this.scheduler;
+				Worker worker = scheduler != null ? scheduler.currentWorker() : null;
+
+				if(worker != null)
+					worker.helpUntilDone(this);
+				else
+					awaitDone();
+			}
+
+			if(error instanceof RuntimeException)
+				throw (RuntimeException)error;
+			if(error instanceof Error)
+				throw (Error)error;
+		}
+
+		/**
+		 * @return true if task is finished
+		 */
+		public final boolean isDone()
+		{
+			return done;
+		}
+
+		private void awaitDone()
+		{
+			boolean interrupted = false;
+
+			synchronized(this)
+			{
+				while(!done)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						interrupted = true;
+					}
+				}
+			}
+
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		private void run()
+		{
+			Throwable error = null;
+			try
+			{
+				compute();
+			}
+			catch(Throwable e)
+			{
+				error = e;
+			}
+
+			complete(error);
+		}
+
+		private void complete(Throwable error)
+		{
+			this.error = error;
+
+			synchronized(this)
+			{
+				done = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Body of parallel loop
+	 */
+	public static interface RangeBody
+	{
+		/**
+		 * Called for subrange of loop
+		 *
+		 * @param from first index, inclusive
+		 * @param to   last index, exclusive
+		 */
+		public void run(int from, int to);
+	}
+
+	/**
+	 * Task of parallelFor, splits range in halves
+	 */
+	private static class RangeTask extends Task
+	{
+		private final int from, to, threshold;
+		private final RangeBody body;
+
+		/**
+		 * Next forked sibling, forked subranges are joined by this list
+		 */
+		private RangeTask next;
+
+		public RangeTask(int from, int to, int threshold, RangeBody body)
+		{
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+			this.body = body;
+		}
+
+		@Override
+		protected void compute()
+		{
+			int start = from, end = to;
+
+			/*
+			 * Right halves are forked, left one is split further on this thread
+			 */
+			RangeTask forked = null;
+			while(end - start > threshold)
+			{
+				int middle = (start + end) >>> 1;
+				RangeTask right = new RangeTask(middle, end, threshold, body);
+				right.next = forked;
+				forked = right;
+				right.fork();
+				end = middle;
+			}
+
+			body.run(start, end);
+
+			for(RangeTask task = forked; task != null; task = task.next)
+				task.join();
+		}
+	}
+
+	/**
+	 * Deque of tasks, owner uses tail, thieves use head
+	 */
+	private static final class TaskDeque
+	{
+		private Task[] items = new Task[32];
+		private int head, size;
+
+		public synchronized void push(Task task)
+		{
+			if(size == items.length)
+			{
+				Task[] grown = new Task[items.length * 2];
+				for(int i = 0; i < size; i++)
+					grown[i] = items[(head + i) & (items.length - 1)];
+
+				items = grown;
+				head = 0;
+			}
+
+			items[(head + size) & (items.length - 1)] = task;
+			size++;
+		}
+
+		public synchronized Task pollLast()
+		{
+			if(size == 0)
+				return null;
+
+			size--;
+			int index = (head + size) & (items.length - 1);
+			Task task = items[index];
+			items[index] = null;
+			return task;
+		}
+
+		public synchronized Task pollFirst()
+		{
+			if(size == 0)
+				return null;
+
+			Task task = items[head];
+			items[head] = null;
+			head = (head + 1) & (items.length - 1);
+			size--;
+			return task;
+		}
+
+		public synchronized boolean isEmpty()
+		{
+			return size == 0;
+		}
+	}
+
+	/**
+	 * Worker thread
+	 */
+	private class Worker extends Thread
+	{
+		private final int index;
+		private final TaskDeque deque = new TaskDeque();
+		private final AtomicLong busyNanos = new AtomicLong(), executed = new AtomicLong(), steals = new AtomicLong();
+
+		/**
+		 * Count of nested runs of tasks, tasks, executed while joining, are nested into joining task, used by this worker only
+		 */
+		private int depth;
+
+		public Worker(int index)
+		{
+			super("WorkStealingScheduler-" + index);
+			this.index = index;
+			setDaemon(true);
+		}
+
+		public WorkStealingScheduler scheduler()
+		{
+			return WorkStealingScheduler.this;
+		}
+
+		@Override
+		public void run()
+		{
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			while(!shutdown)
+			{
+				Task task = findTask();
+				if(task == null)
+				{
+					park();
+					continue;
+				}
+
+				execute(task);
+			}
+
+			/*
+			 * Tasks, pushed by tasks of other workers while they were finishing, are cancelled by exiting workers
+			 */
+			cancelPending();
+		}
+
+		/**
+		 * Runs task and counts its time as busy time
+		 * Time of outermost task includes tasks, executed while it joins others, so only it is measured,
+		 * and waits of joining are subtracted by helpUntilDone
+		 */
+		private void execute(Task task)
+		{
+			if(depth > 0)
+			{
+				depth++;
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					depth--;
+				}
+				return;
+			}
+
+			depth++;
+			long start = System.nanoTime();
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				busyNanos.addAndGet(System.nanoTime() - start);
+				depth--;
+			}
+		}
+
+		/**
+		 * Takes task from own deque, then from inbox, then steals it from other worker
+		 */
+		private Task findTask()
+		{
+			Task task = deque.pollLast();
+			if(task == null)
+				task = inbox.pollFirst();
+
+			for(int i = 1; task == null && i < workers.length; i++)
+			{
+				task = workers[(index + i) % workers.length].deque.pollFirst();
+				if(task != null)
+					steals.incrementAndGet();
+			}
+
+			if(task != null)
+				executed.incrementAndGet();
+
+			return task;
+		}
+
+		/**
+		 * Executes other tasks, while awaited task is not finished
+		 */
+		private void helpUntilDone(Task awaited)
+		{
+			boolean interrupted = false;
+
+			while(!awaited.done)
+			{
+				Task task = findTask();
+				if(task != null)
+				{
+					execute(task);
+					continue;
+				}
+
+				/*
+				 * Awaited task is executed by other worker, it can fork subtasks, so wait only for short time
+				 */
+				long start = System.nanoTime();
+				synchronized(awaited)
+				{
+					if(!awaited.done)
+					{
+						try
+						{
+							awaited.wait(1);
+						}
+						catch(InterruptedException e)
+						{
+							interrupted = true;
+						}
+					}
+				}
+
+				/*
+				 * Worker is idle while waiting, joining task is measured by execute, so waiting is excluded from it
+				 */
+				if(depth > 0)
+					busyNanos.addAndGet(start - System.nanoTime());
+			}
+
+			if(interrupted)
+				interrupt();
+		}
+
+		private void park()
+		{
+			synchronized(lock)
+			{
+				idle.incrementAndGet();
+				try
+				{
+					if(!shutdown && !hasWork())
+						lock.wait();
+				}
+				catch(InterruptedException e)
+				{
+
+				}
+				finally
+				{
+					idle.decrementAndGet();
+				}
+			}
+		}
+	}
+}